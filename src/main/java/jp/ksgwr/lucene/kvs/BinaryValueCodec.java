@@ -0,0 +1,689 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * compact binary value codec.
+ * primitives, String, byte[], standard collections and registered classes are written with 1 byte tag,
+ * registered classes are written by class id and fields instead of class descriptor.
+ * other Serializable values and values written by java serialization are handled by {@link JavaSerializationCodec}.
+ * fields of registered class must not be changed after values are written.
+ *
+ * @author ksgwr
+ *
+ * @param <V> ValueObject
+ */
+public class BinaryValueCodec<V> implements ValueCodec<V> {
+
+	/** format version, it's first byte of encoded value */
+	public static final byte FORMAT = 1;
+
+	/** initial buffer size */
+	private static final int INITIAL_BUFFER_SIZE = 256;
+
+	/** max buffer size kept by thread */
+	private static final int MAX_KEPT_BUFFER_SIZE = 1 << 20;
+
+	// value tags
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte INT = 5;
+	private static final byte LONG = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte CHAR = 9;
+	private static final byte STRING = 10;
+	private static final byte BYTES = 11;
+	private static final byte ARRAY_LIST = 12;
+	private static final byte HASH_SET = 13;
+	private static final byte LINKED_HASH_SET = 14;
+	private static final byte TREE_SET = 15;
+	private static final byte HASH_MAP = 16;
+	private static final byte LINKED_HASH_MAP = 17;
+	private static final byte TREE_MAP = 18;
+	private static final byte OBJECT = 19;
+	private static final byte JAVA = 20;
+
+	/** registered class info by class */
+	private final ConcurrentHashMap<Class<?>, ClassInfo> classes;
+
+	/** registered class info by id */
+	private final ConcurrentHashMap<Integer, ClassInfo> ids;
+
+	/** reused buffer by thread */
+	private final ThreadLocal<Output> outputs;
+
+	/**
+	 * constructor
+	 */
+	public BinaryValueCodec() {
+		this.classes = new ConcurrentHashMap<Class<?>, ClassInfo>();
+		this.ids = new ConcurrentHashMap<Integer, ClassInfo>();
+		this.outputs = new ThreadLocal<Output>();
+	}
+
+	/**
+	 * register class, it's written by id and fields.
+	 * class needs no argument constructor, static and transient fields are not written.
+	 * id must be same between writing and reading.
+	 * @param type class
+	 * @param id class id
+	 * @return this codec
+	 */
+	public BinaryValueCodec<V> register(Class<?> type, int id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("id must not be negative");
+		}
+		ClassInfo info = new ClassInfo(type, id);
+		ClassInfo old = ids.putIfAbsent(id, info);
+		if (old != null && old.type != type) {
+			throw new IllegalArgumentException("id " + id + " is already registered by " + old.type.getName());
+		}
+		classes.put(type, info);
+		return this;
+	}
+
+	@Override
+	public byte[] encode(V value) throws IOException {
+		Output out = outputs.get();
+		if (out == null || out.isUsed) {
+			// 入れ子の呼び出しでは新しいbufferを使う
+			out = new Output(INITIAL_BUFFER_SIZE);
+			if (outputs.get() == null) {
+				outputs.set(out);
+			}
+		}
+		out.isUsed = true;
+		try {
+			out.length = 0;
+			out.writeByte(FORMAT);
+			writeObject(out, value);
+			return Arrays.copyOf(out.buf, out.length);
+		} finally {
+			out.isUsed = false;
+			if (out.buf.length > MAX_KEPT_BUFFER_SIZE) {
+				out.buf = new byte[INITIAL_BUFFER_SIZE];
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+		if (JavaSerializationCodec.isSerialized(data, offset, length)) {
+			// java serializationで保存された値
+			return (V) JavaSerializationCodec.deserialize(data, offset, length);
+		}
+		Input in = new Input(data, offset, length);
+		byte format = in.readByte();
+		if (format != FORMAT) {
+			throw new IOException("unknown value format: " + format);
+		}
+		return (V) readObject(in);
+	}
+
+	/**
+	 * write tagged object
+	 * @param out output
+	 * @param value object
+	 * @throws IOException IOException
+	 */
+	protected void writeObject(Output out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+			return;
+		}
+		Class<?> type = value.getClass();
+		if (type == String.class) {
+			out.writeByte(STRING);
+			out.writeString((String) value);
+		} else if (type == Integer.class) {
+			out.writeByte(INT);
+			out.writeVarLong(zigzag((Integer) value));
+		} else if (type == Long.class) {
+			out.writeByte(LONG);
+			out.writeVarLong(zigzag((Long) value));
+		} else if (type == Double.class) {
+			out.writeByte(DOUBLE);
+			out.writeLong(Double.doubleToLongBits((Double) value));
+		} else if (type == Float.class) {
+			out.writeByte(FLOAT);
+			out.writeInt(Float.floatToIntBits((Float) value));
+		} else if (type == Boolean.class) {
+			out.writeByte((Boolean) value ? TRUE : FALSE);
+		} else if (type == Short.class) {
+			out.writeByte(SHORT);
+			out.writeVarLong(zigzag((Short) value));
+		} else if (type == Byte.class) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (type == Character.class) {
+			out.writeByte(CHAR);
+			out.writeVarLong((Character) value);
+		} else if (type == byte[].class) {
+			byte[] bytes = (byte[]) value;
+			out.writeByte(BYTES);
+			out.writeVarLong(bytes.length);
+			out.writeBytes(bytes, 0, bytes.length);
+		} else if (classes.containsKey(type)) {
+			ClassInfo info = classes.get(type);
+			out.writeByte(OBJECT);
+			out.writeVarLong(info.id);
+			writeFields(out, info, value);
+		} else if (type == ArrayList.class) {
+			writeCollection(out, ARRAY_LIST, (Collection<?>) value);
+		} else if (type == HashSet.class) {
+			writeCollection(out, HASH_SET, (Collection<?>) value);
+		} else if (type == LinkedHashSet.class) {
+			writeCollection(out, LINKED_HASH_SET, (Collection<?>) value);
+		} else if (type == TreeSet.class && ((TreeSet<?>) value).comparator() == null) {
+			writeCollection(out, TREE_SET, (Collection<?>) value);
+		} else if (type == HashMap.class) {
+			writeMap(out, HASH_MAP, (Map<?, ?>) value);
+		} else if (type == LinkedHashMap.class) {
+			writeMap(out, LINKED_HASH_MAP, (Map<?, ?>) value);
+		} else if (type == TreeMap.class && ((TreeMap<?, ?>) value).comparator() == null) {
+			writeMap(out, TREE_MAP, (Map<?, ?>) value);
+		} else if (value instanceof Serializable) {
+			// 未登録のclassはjava serializationで保存する
+			byte[] bytes = JavaSerializationCodec.serialize(value);
+			out.writeByte(JAVA);
+			out.writeVarLong(bytes.length);
+			out.writeBytes(bytes, 0, bytes.length);
+		} else {
+			throw new NotSerializableException(type.getName());
+		}
+	}
+
+	/**
+	 * write collection
+	 * @param out output
+	 * @param tag collection tag
+	 * @param collection collection
+	 * @throws IOException IOException
+	 */
+	private void writeCollection(Output out, byte tag, Collection<?> collection) throws IOException {
+		out.writeByte(tag);
+		out.writeVarLong(collection.size());
+		for (Object element : collection) {
+			writeObject(out, element);
+		}
+	}
+
+	/**
+	 * write map
+	 * @param out output
+	 * @param tag map tag
+	 * @param map map
+	 * @throws IOException IOException
+	 */
+	private void writeMap(Output out, byte tag, Map<?, ?> map) throws IOException {
+		out.writeByte(tag);
+		out.writeVarLong(map.size());
+		for (Entry<?, ?> entry : map.entrySet()) {
+			writeObject(out, entry.getKey());
+			writeObject(out, entry.getValue());
+		}
+	}
+
+	/**
+	 * write fields of registered class, primitive fields are written without tag
+	 * @param out output
+	 * @param info class info
+	 * @param value object
+	 * @throws IOException IOException
+	 */
+	private void writeFields(Output out, ClassInfo info, Object value) throws IOException {
+		try {
+			for (Field field : info.fields) {
+				Class<?> type = field.getType();
+				if (type == int.class) {
+					out.writeVarLong(zigzag(field.getInt(value)));
+				} else if (type == long.class) {
+					out.writeVarLong(zigzag(field.getLong(value)));
+				} else if (type == double.class) {
+					out.writeLong(Double.doubleToLongBits(field.getDouble(value)));
+				} else if (type == float.class) {
+					out.writeInt(Float.floatToIntBits(field.getFloat(value)));
+				} else if (type == boolean.class) {
+					out.writeByte(field.getBoolean(value) ? TRUE : FALSE);
+				} else if (type == short.class) {
+					out.writeVarLong(zigzag(field.getShort(value)));
+				} else if (type == byte.class) {
+					out.writeByte(field.getByte(value));
+				} else if (type == char.class) {
+					out.writeVarLong(field.getChar(value));
+				} else {
+					writeObject(out, field.get(value));
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * read tagged object
+	 * @param in input
+	 * @return object
+	 * @throws IOException IOException
+	 * @throws ClassNotFoundException ClassNotFoundException
+	 */
+	protected Object readObject(Input in) throws IOException, ClassNotFoundException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case BYTE:
+			return in.readByte();
+		case SHORT:
+			return (short) unzigzag(in.readVarLong());
+		case INT:
+			return (int) unzigzag(in.readVarLong());
+		case LONG:
+			return unzigzag(in.readVarLong());
+		case FLOAT:
+			return Float.intBitsToFloat(in.readInt());
+		case DOUBLE:
+			return Double.longBitsToDouble(in.readLong());
+		case CHAR:
+			return (char) in.readVarLong();
+		case STRING:
+			return in.readString();
+		case BYTES:
+			return in.readBytes(in.readLength());
+		case ARRAY_LIST: {
+			int size = in.readLength();
+			return readCollection(in, size, new ArrayList<Object>(size));
+		}
+		case HASH_SET: {
+			int size = in.readLength();
+			return readCollection(in, size, new HashSet<Object>(capacity(size)));
+		}
+		case LINKED_HASH_SET: {
+			int size = in.readLength();
+			return readCollection(in, size, new LinkedHashSet<Object>(capacity(size)));
+		}
+		case TREE_SET:
+			return readCollection(in, in.readLength(), new TreeSet<Object>());
+		case HASH_MAP: {
+			int size = in.readLength();
+			return readMap(in, size, new HashMap<Object, Object>(capacity(size)));
+		}
+		case LINKED_HASH_MAP: {
+			int size = in.readLength();
+			return readMap(in, size, new LinkedHashMap<Object, Object>(capacity(size)));
+		}
+		case TREE_MAP:
+			return readMap(in, in.readLength(), new TreeMap<Object, Object>());
+		case OBJECT: {
+			int id = (int) in.readVarLong();
+			ClassInfo info = ids.get(id);
+			if (info == null) {
+				throw new ClassNotFoundException("class id " + id + " is not registered");
+			}
+			return readFields(in, info);
+		}
+		case JAVA: {
+			int length = in.readLength();
+			int offset = in.skip(length);
+			return JavaSerializationCodec.deserialize(in.buf, offset, length);
+		}
+		default:
+			throw new IOException("unknown value tag: " + tag);
+		}
+	}
+
+	/**
+	 * read collection elements
+	 * @param in input
+	 * @param size element count
+	 * @param collection empty collection
+	 * @return collection
+	 * @throws IOException IOException
+	 * @throws ClassNotFoundException ClassNotFoundException
+	 */
+	private Collection<Object> readCollection(Input in, int size, Collection<Object> collection) throws IOException, ClassNotFoundException {
+		for (int i = 0; i < size; i++) {
+			collection.add(readObject(in));
+		}
+		return collection;
+	}
+
+	/**
+	 * read map entries
+	 * @param in input
+	 * @param size entry count
+	 * @param map empty map
+	 * @return map
+	 * @throws IOException IOException
+	 * @throws ClassNotFoundException ClassNotFoundException
+	 */
+	private Map<Object, Object> readMap(Input in, int size, Map<Object, Object> map) throws IOException, ClassNotFoundException {
+		for (int i = 0; i < size; i++) {
+			Object key = readObject(in);
+			map.put(key, readObject(in));
+		}
+		return map;
+	}
+
+	/**
+	 * read fields of registered class
+	 * @param in input
+	 * @param info class info
+	 * @return object
+	 * @throws IOException IOException
+	 * @throws ClassNotFoundException ClassNotFoundException
+	 */
+	private Object readFields(Input in, ClassInfo info) throws IOException, ClassNotFoundException {
+		try {
+			Object value = info.constructor.newInstance();
+			for (Field field : info.fields) {
+				Class<?> type = field.getType();
+				if (type == int.class) {
+					field.setInt(value, (int) unzigzag(in.readVarLong()));
+				} else if (type == long.class) {
+					field.setLong(value, unzigzag(in.readVarLong()));
+				} else if (type == double.class) {
+					field.setDouble(value, Double.longBitsToDouble(in.readLong()));
+				} else if (type == float.class) {
+					field.setFloat(value, Float.intBitsToFloat(in.readInt()));
+				} else if (type == boolean.class) {
+					field.setBoolean(value, in.readByte() == TRUE);
+				} else if (type == short.class) {
+					field.setShort(value, (short) unzigzag(in.readVarLong()));
+				} else if (type == byte.class) {
+					field.setByte(value, in.readByte());
+				} else if (type == char.class) {
+					field.setChar(value, (char) in.readVarLong());
+				} else {
+					field.set(value, readObject(in));
+				}
+			}
+			return value;
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * hash capacity for size
+	 * @param size element count
+	 * @return capacity
+	 */
+	private static int capacity(int size) {
+		return Math.max(16, (int) (size / 0.75f) + 1);
+	}
+
+	/**
+	 * zigzag encode, small negative numbers become small
+	 * @param value value
+	 * @return encoded value
+	 */
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * zigzag decode
+	 * @param value encoded value
+	 * @return value
+	 */
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * registered class info
+	 */
+	private static class ClassInfo {
+
+		/** class */
+		final Class<?> type;
+
+		/** class id */
+		final int id;
+
+		/** no argument constructor */
+		final Constructor<?> constructor;
+
+		/** written fields in fixed order */
+		final Field[] fields;
+
+		/**
+		 * constructor
+		 * @param type class
+		 * @param id class id
+		 */
+		ClassInfo(Class<?> type, int id) {
+			this.type = type;
+			this.id = id;
+			try {
+				this.constructor = type.getDeclaredConstructor();
+				this.constructor.setAccessible(true);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException(type.getName() + " has no argument constructor", e);
+			}
+			List<Field> list = new ArrayList<Field>();
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				Field[] declared = c.getDeclaredFields();
+				// 宣言順はJVMで保証されないため名前順にする
+				Arrays.sort(declared, new Comparator<Field>() {
+					@Override
+					public int compare(Field o1, Field o2) {
+						return o1.getName().compareTo(o2.getName());
+					}
+				});
+				for (Field field : declared) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+						continue;
+					}
+					field.setAccessible(true);
+					list.add(field);
+				}
+			}
+			this.fields = list.toArray(new Field[list.size()]);
+		}
+	}
+
+	/**
+	 * growable output buffer
+	 */
+	protected static class Output {
+
+		/** buffer */
+		byte[] buf;
+
+		/** written length */
+		int length;
+
+		/** if true, buffer is used by encoding */
+		boolean isUsed;
+
+		/**
+		 * constructor
+		 * @param size initial size
+		 */
+		Output(int size) {
+			this.buf = new byte[size];
+		}
+
+		/**
+		 * ensure capacity
+		 * @param size additional size
+		 */
+		private void ensure(int size) {
+			if (length + size > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length << 1, length + size));
+			}
+		}
+
+		void writeByte(int value) {
+			ensure(1);
+			buf[length++] = (byte) value;
+		}
+
+		void writeBytes(byte[] bytes, int offset, int size) {
+			ensure(size);
+			System.arraycopy(bytes, offset, buf, length, size);
+			length += size;
+		}
+
+		void writeInt(int value) {
+			ensure(4);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				buf[length++] = (byte) (value >>> shift);
+			}
+		}
+
+		void writeLong(long value) {
+			ensure(8);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				buf[length++] = (byte) (value >>> shift);
+			}
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				buf[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buf[length++] = (byte) value;
+		}
+
+		void writeString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length);
+			writeBytes(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * input over byte array
+	 */
+	protected static class Input {
+
+		/** buffer */
+		final byte[] buf;
+
+		/** current position */
+		int pos;
+
+		/** end position */
+		final int end;
+
+		/**
+		 * constructor
+		 * @param buf buffer
+		 * @param offset offset
+		 * @param length length
+		 */
+		Input(byte[] buf, int offset, int length) {
+			this.buf = buf;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+
+		/**
+		 * skip bytes
+		 * @param size size
+		 * @return position before skip
+		 * @throws EOFException EOFException
+		 */
+		int skip(int size) throws EOFException {
+			if (size > end - pos) {
+				throw new EOFException();
+			}
+			int start = pos;
+			pos += size;
+			return start;
+		}
+
+		byte readByte() throws EOFException {
+			if (pos >= end) {
+				throw new EOFException();
+			}
+			return buf[pos++];
+		}
+
+		int readInt() throws EOFException {
+			int start = skip(4);
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				value = (value << 8) | (buf[start + i] & 0xFF);
+			}
+			return value;
+		}
+
+		long readLong() throws EOFException {
+			int start = skip(8);
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (buf[start + i] & 0xFFL);
+			}
+			return value;
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("malformed variable length number");
+		}
+
+		int readLength() throws IOException {
+			long length = readVarLong();
+			if (length < 0 || length > end - pos) {
+				throw new EOFException();
+			}
+			return (int) length;
+		}
+
+		byte[] readBytes(int size) throws EOFException {
+			int start = skip(size);
+			return Arrays.copyOfRange(buf, start, start + size);
+		}
+
+		String readString() throws IOException {
+			int size = readLength();
+			int start = skip(size);
+			return new String(buf, start, size, StandardCharsets.UTF_8);
+		}
+	}
+}
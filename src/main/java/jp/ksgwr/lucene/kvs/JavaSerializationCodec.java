@@ -0,0 +1,74 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * value codec by java serialization, value must be Serializable
+ *
+ * @author ksgwr
+ *
+ * @param <V> ValueObject
+ */
+public class JavaSerializationCodec<V> implements ValueCodec<V> {
+
+	/** first byte of java serialization stream */
+	public static final byte MAGIC1 = (byte) 0xAC;
+
+	/** second byte of java serialization stream */
+	public static final byte MAGIC2 = (byte) 0xED;
+
+	@Override
+	public byte[] encode(V value) throws IOException {
+		return serialize(value);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+		return (V) deserialize(data, offset, length);
+	}
+
+	/**
+	 * is java serialization stream
+	 * @param data bytes
+	 * @param offset offset
+	 * @param length length
+	 * @return if true, bytes start with java serialization magic
+	 */
+	public static boolean isSerialized(byte[] data, int offset, int length) {
+		return length >= 2 && data[offset] == MAGIC1 && data[offset + 1] == MAGIC2;
+	}
+
+	/**
+	 * serialize object
+	 * @param value object
+	 * @return serialized bytes
+	 * @throws IOException IOException
+	 */
+	public static byte[] serialize(Object value) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+			out.writeObject(value);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * deserialize object
+	 * @param data serialized bytes
+	 * @param offset offset
+	 * @param length length
+	 * @return object
+	 * @throws IOException IOException
+	 * @throws ClassNotFoundException ClassNotFoundException
+	 */
+	public static Object deserialize(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+			return in.readObject();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * stored field visitor which reads one binary field, other fields are skipped.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSBinaryFieldVisitor extends StoredFieldVisitor {
+
+	/** field name */
+	protected final String field;
+
+	/** loaded value, null when not found */
+	protected BytesRef value;
+
+	/**
+	 * constructor
+	 * @param field field name
+	 */
+	public KVSBinaryFieldVisitor(String field) {
+		this.field = field;
+	}
+
+	@Override
+	public Status needsField(FieldInfo fieldInfo) throws IOException {
+		if (value != null) {
+			return Status.STOP;
+		}
+		return field.equals(fieldInfo.name) ? Status.YES : Status.NO;
+	}
+
+	@Override
+	public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+		// stored fieldsの解凍で新しく確保された配列をそのまま使う
+		this.value = new BytesRef(value);
+	}
+
+	/**
+	 * loaded value
+	 * @return value, null when not found
+	 */
+	public BytesRef getValue() {
+		return value;
+	}
+}
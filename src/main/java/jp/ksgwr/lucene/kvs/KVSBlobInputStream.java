@@ -0,0 +1,120 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import jp.ksgwr.lucene.kvs.KVSBlobStore.BlobRef;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * stream of chunked blob, only one chunk is held in heap.
+ * searcher is held until stream is closed.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSBlobInputStream extends InputStream {
+
+	/** blob store */
+	protected final KVSBlobStore store;
+
+	/** blob reference */
+	protected final BlobRef ref;
+
+	/** pinned blob searcher, null when closed */
+	protected IndexSearcher searcher;
+
+	/** next chunk ordinal */
+	protected int ordinal;
+
+	/** current chunk */
+	protected BytesRef chunk;
+
+	/** position in current chunk */
+	protected int pos;
+
+	/**
+	 * constructor
+	 * @param store blob store
+	 * @param ref blob reference
+	 * @throws IOException IOException
+	 */
+	public KVSBlobInputStream(KVSBlobStore store, BlobRef ref) throws IOException {
+		this.store = store;
+		this.ref = ref;
+		this.searcher = store.acquire();
+	}
+
+	/**
+	 * load next chunk if current chunk is consumed
+	 * @return if false, end of blob
+	 * @throws IOException IOException
+	 */
+	protected boolean fill() throws IOException {
+		if (searcher == null) {
+			throw new IOException("stream is closed");
+		}
+		while (chunk == null || pos >= chunk.length) {
+			if (ordinal >= ref.chunks) {
+				return false;
+			}
+			BytesRef id = new BytesRef(KVSBlobStore.chunkId(ref.blobId, ordinal));
+			int docId = store.chunkLookup.lookup(searcher.getIndexReader(), id);
+			if (docId < 0) {
+				throw new IOException("chunk " + ordinal + " of blob " + ref.blobId + " is deleted");
+			}
+			KVSBinaryFieldVisitor visitor = new KVSBinaryFieldVisitor(KVSBlobStore.DATA);
+			searcher.doc(docId, visitor);
+			chunk = visitor.getValue();
+			pos = 0;
+			ordinal++;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return chunk.bytes[chunk.offset + pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int size = Math.min(len, chunk.length - pos);
+		System.arraycopy(chunk.bytes, chunk.offset + pos, b, off, size);
+		pos += size;
+		return size;
+	}
+
+	@Override
+	public int available() {
+		return chunk == null ? 0 : chunk.length - pos;
+	}
+
+	/**
+	 * blob length
+	 * @return length
+	 */
+	public long length() {
+		return ref.length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (searcher != null) {
+			store.release(searcher);
+			searcher = null;
+			chunk = null;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * chunked large value store, chunks are stored as documents in separate index.
+ * value is referenced by blob id, so replaced blob can be deleted after new blob is written.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSBlobStore implements Closeable {
+
+	/** default chunk size */
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	/** owner key term field name */
+	public static final String OWNER = "owner";
+
+	/** blob id field name */
+	public static final String BLOB_ID = "blobid";
+
+	/** chunk id (blob id and ordinal) field name */
+	public static final String CHUNK = "chunk";
+
+	/** chunk data field name */
+	public static final String DATA = "data";
+
+	/** blob index directory */
+	protected final Directory directory;
+
+	/** blob index writer */
+	protected final IndexWriter writer;
+
+	/** blob searcher manager */
+	protected final SearcherManager manager;
+
+	/** chunk size */
+	protected final int chunkSize;
+
+	/** chunk lookup engine */
+	protected final KVSKeyLookup chunkLookup;
+
+	/** blob id sequence */
+	private final AtomicLong sequence;
+
+	/** blob id prefix, it's unique by store instance */
+	private final String idPrefix;
+
+	/**
+	 * constructor
+	 * @param directory blob index directory, it must not be shared with main index
+	 * @param chunkSize chunk size
+	 * @throws IOException IOException
+	 */
+	public KVSBlobStore(Directory directory, int chunkSize) throws IOException {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		this.directory = directory;
+		this.chunkSize = chunkSize;
+		this.writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+		this.writer.commit();
+		this.manager = new SearcherManager(writer, true, new KVSSearcherFactory());
+		this.chunkLookup = new KVSKeyLookup(CHUNK);
+		this.sequence = new AtomicLong();
+		this.idPrefix = Long.toHexString(System.currentTimeMillis()) + Long.toHexString(System.nanoTime() & 0xffffff);
+	}
+
+	/**
+	 * write blob by chunks, stream is read until end but not closed.
+	 * blob is committed and visible when this method returns.
+	 * @param owner owner key term bytes
+	 * @param in value stream
+	 * @return blob reference
+	 * @throws IOException IOException
+	 */
+	public BlobRef write(BytesRef owner, InputStream in) throws IOException {
+		String blobId = idPrefix + "-" + Long.toHexString(sequence.incrementAndGet());
+		BytesRef ownerBytes = BytesRef.deepCopyOf(owner);
+		byte[] buf = new byte[chunkSize];
+		long length = 0;
+		int chunks = 0;
+		int size;
+		while ((size = readChunk(in, buf)) > 0) {
+			Document doc = new Document();
+			doc.add(new Field(OWNER, ownerBytes, StringField.TYPE_NOT_STORED));
+			doc.add(new StringField(BLOB_ID, blobId, Field.Store.NO));
+			doc.add(new StringField(CHUNK, chunkId(blobId, chunks), Field.Store.NO));
+			// addDocumentでstored fieldが書き込まれるためbufferは再利用できる
+			doc.add(new StoredField(DATA, buf, 0, size));
+			writer.addDocument(doc);
+			length += size;
+			chunks++;
+		}
+		commit();
+		return new BlobRef(blobId, length, chunks);
+	}
+
+	/**
+	 * fill buffer from stream
+	 * @param in stream
+	 * @param buf buffer
+	 * @return read size, 0 when end of stream
+	 * @throws IOException IOException
+	 */
+	private static int readChunk(InputStream in, byte[] buf) throws IOException {
+		int size = 0;
+		int read;
+		while (size < buf.length && (read = in.read(buf, size, buf.length - size)) > 0) {
+			size += read;
+		}
+		return size;
+	}
+
+	/**
+	 * chunk id
+	 * @param blobId blob id
+	 * @param ordinal chunk ordinal
+	 * @return chunk id
+	 */
+	static String chunkId(String blobId, int ordinal) {
+		return blobId + ":" + ordinal;
+	}
+
+	/**
+	 * open blob stream, it holds searcher until closed
+	 * @param ref blob reference
+	 * @return stream
+	 * @throws IOException IOException
+	 */
+	public InputStream open(BlobRef ref) throws IOException {
+		return new KVSBlobInputStream(this, ref);
+	}
+
+	/**
+	 * delete all blobs of owner, deletion is visible after commit
+	 * @param owner owner key term bytes
+	 * @throws IOException IOException
+	 */
+	public void delete(BytesRef owner) throws IOException {
+		writer.deleteDocuments(new Term(OWNER, BytesRef.deepCopyOf(owner)));
+	}
+
+	/**
+	 * delete blobs of owner except kept blob, deletion is visible after commit
+	 * @param owner owner key term bytes
+	 * @param keepBlobId blob id which is not deleted
+	 * @throws IOException IOException
+	 */
+	public void delete(BytesRef owner, String keepBlobId) throws IOException {
+		BooleanQuery query = new BooleanQuery.Builder()
+				.add(new TermQuery(new Term(OWNER, BytesRef.deepCopyOf(owner))), Occur.MUST)
+				.add(new TermQuery(new Term(BLOB_ID, keepBlobId)), Occur.MUST_NOT)
+				.build();
+		writer.deleteDocuments(query);
+	}
+
+	/**
+	 * delete blobs of owners which start with prefix, deletion is visible after commit
+	 * @param prefix owner key term prefix
+	 * @throws IOException IOException
+	 */
+	public void deletePrefix(BytesRef prefix) throws IOException {
+		writer.deleteDocuments(new PrefixQuery(new Term(OWNER, BytesRef.deepCopyOf(prefix))));
+	}
+
+	/**
+	 * delete all blobs
+	 * @throws IOException IOException
+	 */
+	public void deleteAll() throws IOException {
+		writer.deleteAll();
+	}
+
+	/**
+	 * commit and reflesh blob index
+	 * @throws IOException IOException
+	 */
+	public void commit() throws IOException {
+		if (writer.hasUncommittedChanges()) {
+			writer.commit();
+			manager.maybeRefreshBlocking();
+		}
+	}
+
+	/**
+	 * commit and copy blob index
+	 * @param directory destination directory
+	 * @throws IOException IOException
+	 */
+	public void save(Directory directory) throws IOException {
+		commit();
+		LuceneKVSBase.copyCommit(this.directory, directory);
+	}
+
+	/**
+	 * acquire searcher
+	 * @return searcher
+	 * @throws IOException IOException
+	 */
+	protected IndexSearcher acquire() throws IOException {
+		return manager.acquire();
+	}
+
+	/**
+	 * release searcher
+	 * @param searcher searcher
+	 * @throws IOException IOException
+	 */
+	protected void release(IndexSearcher searcher) throws IOException {
+		manager.release(searcher);
+	}
+
+	/**
+	 * chunk size
+	 * @return chunk size
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+		manager.close();
+	}
+
+	/**
+	 * blob reference stored in main index
+	 */
+	public static class BlobRef {
+
+		/** blob id */
+		public final String blobId;
+
+		/** value length */
+		public final long length;
+
+		/** chunk count */
+		public final int chunks;
+
+		/**
+		 * constructor
+		 * @param blobId blob id
+		 * @param length value length
+		 * @param chunks chunk count
+		 */
+		public BlobRef(String blobId, long length, int chunks) {
+			this.blobId = blobId;
+			this.length = length;
+			this.chunks = chunks;
+		}
+
+		/**
+		 * parse reference string
+		 * @param ref reference string created by {@link #toString()}
+		 * @return blob reference
+		 */
+		public static BlobRef parse(String ref) {
+			String[] values = ref.split(",");
+			return new BlobRef(values[0], Long.parseLong(values[1]), Integer.parseInt(values[2]));
+		}
+
+		@Override
+		public String toString() {
+			return blobId + "," + length + "," + chunks;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * thread safe Bloom filter of key terms.
+ * keys are only added, so deleted keys remain as false positive.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSBloomFilter {
+
+	/** hash seed */
+	private static final int SEED1 = 0x9747b28c;
+
+	/** hash seed */
+	private static final int SEED2 = 0x5bd1e995;
+
+	/** bit array */
+	private final AtomicLongArray bits;
+
+	/** bit size */
+	private final long bitSize;
+
+	/** hash function count */
+	private final int hashCount;
+
+	/**
+	 * constructor
+	 * @param expectedKeys expected key count
+	 * @param fpp false positive probability
+	 */
+	public KVSBloomFilter(long expectedKeys, double fpp) {
+		if (expectedKeys <= 0 || fpp <= 0 || fpp >= 1) {
+			throw new IllegalArgumentException("expectedKeys must be positive and fpp must be in (0, 1)");
+		}
+		long m = (long) Math.ceil(-expectedKeys * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		int words = (int) Math.min(Integer.MAX_VALUE - 8, (m + 63) >>> 6);
+		this.bits = new AtomicLongArray(words);
+		this.bitSize = (long) words << 6;
+		this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedKeys * Math.log(2)));
+	}
+
+	/**
+	 * add key term
+	 * @param term key term bytes
+	 */
+	public void add(BytesRef term) {
+		int h1 = StringHelper.murmurhash3_x86_32(term, SEED1);
+		int h2 = StringHelper.murmurhash3_x86_32(term, SEED2);
+		for (int i = 0; i < hashCount; i++) {
+			long index = bitIndex(h1, h2, i);
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+			long current;
+			while (((current = bits.get(word)) & mask) == 0) {
+				if (bits.compareAndSet(word, current, current | mask)) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * test key term
+	 * @param term key term bytes
+	 * @return if false, key definitely doesn't exist
+	 */
+	public boolean mightContain(BytesRef term) {
+		int h1 = StringHelper.murmurhash3_x86_32(term, SEED1);
+		int h2 = StringHelper.murmurhash3_x86_32(term, SEED2);
+		for (int i = 0; i < hashCount; i++) {
+			long index = bitIndex(h1, h2, i);
+			if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * bit index by double hashing
+	 * @param h1 hash1
+	 * @param h2 hash2
+	 * @param i hash function number
+	 * @return bit index
+	 */
+	private long bitIndex(int h1, int h2, int i) {
+		long hash = (h1 & 0xffffffffL) + i * (h2 & 0xffffffffL);
+		return hash % bitSize;
+	}
+
+	/**
+	 * bit size
+	 * @return bit size
+	 */
+	public long getBitSize() {
+		return bitSize;
+	}
+
+	/**
+	 * hash function count
+	 * @return hash function count
+	 */
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 * ratio of set bits, false positive probability is about ratio^hashCount
+	 * @return ratio
+	 */
+	public double getFillRatio() {
+		long count = 0;
+		for (int i = 0, size = bits.length(); i < size; i++) {
+			count += Long.bitCount(bits.get(i));
+		}
+		return (double) count / bitSize;
+	}
+}
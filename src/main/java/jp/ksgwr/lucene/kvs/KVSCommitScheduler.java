@@ -0,0 +1,177 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jp.ksgwr.lucene.exception.LuceneRuntimeException;
+
+/**
+ * Group commit scheduler.
+ * commit many writes at once when interval time passed or pending operations exceed limit.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSCommitScheduler implements Closeable {
+
+	/** target kvs */
+	protected final LuceneKVSBase<?, ?> kvs;
+
+	/** commit interval milli seconds */
+	protected final long intervalMillis;
+
+	/** max pending operations before commit */
+	protected final int maxPendingOps;
+
+	/** commit thread */
+	protected final ScheduledExecutorService executor;
+
+	/** written operation count */
+	protected final AtomicLong writeCount;
+
+	/** committed operation count */
+	protected volatile long committedCount;
+
+	/** if true, commit task is already queued */
+	protected final AtomicBoolean isCommitQueued;
+
+	/** failure of background commit, it's thrown by next sync or close */
+	protected final AtomicReference<RuntimeException> failure;
+
+	/** lock for commit */
+	private final Object commitLock = new Object();
+
+	/** commit task */
+	private final Runnable commitTask = new Runnable() {
+		@Override
+		public void run() {
+			isCommitQueued.set(false);
+			try {
+				sync();
+			} catch (RuntimeException e) {
+				// 例外で定期実行が止まらないようにし、次のsyncで呼び出し元に伝える
+				failure.compareAndSet(null, e);
+			}
+		}
+	};
+
+	/**
+	 * constructor
+	 * @param kvs target kvs
+	 * @param intervalMillis commit interval milli seconds (0 or less: count-based only)
+	 * @param maxPendingOps max pending operations before commit (0 or less: time-based only)
+	 */
+	public KVSCommitScheduler(LuceneKVSBase<?, ?> kvs, long intervalMillis, int maxPendingOps) {
+		if (intervalMillis <= 0 && maxPendingOps <= 0) {
+			throw new IllegalArgumentException("intervalMillis or maxPendingOps must be positive");
+		}
+		this.kvs = kvs;
+		this.intervalMillis = intervalMillis;
+		this.maxPendingOps = maxPendingOps;
+		this.writeCount = new AtomicLong();
+		this.committedCount = 0;
+		this.isCommitQueued = new AtomicBoolean(false);
+		this.failure = new AtomicReference<RuntimeException>();
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "kvs-commit-scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (intervalMillis > 0) {
+			executor.scheduleWithFixedDelay(commitTask, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * notify write operations, it's called after writer operations
+	 * @param ops operation count
+	 */
+	public void onWrite(int ops) {
+		long count = writeCount.addAndGet(ops);
+		if (maxPendingOps > 0 && count - committedCount >= maxPendingOps
+				&& isCommitQueued.compareAndSet(false, true)) {
+			executor.execute(commitTask);
+		}
+	}
+
+	/**
+	 * wait until all operations written before this call are committed.
+	 * if commit is not running, commit by caller thread.
+	 * @throws LuceneRuntimeException when background commit failed after last sync
+	 */
+	public void sync() {
+		awaitCommit(writeCount.get());
+	}
+
+	/**
+	 * wait until operations are committed
+	 * @param target operation count
+	 * @throws LuceneRuntimeException when background commit failed after last sync
+	 */
+	protected void awaitCommit(long target) {
+		RuntimeException e = failure.getAndSet(null);
+		if (e != null) {
+			throw new LuceneRuntimeException(e);
+		}
+		if (committedCount >= target) {
+			return;
+		}
+		synchronized (commitLock) {
+			// 待っている間に他のスレッドがcommitしていれば不要
+			if (committedCount >= target) {
+				return;
+			}
+			long count = writeCount.get();
+			kvs.commit();
+			committedCount = count;
+		}
+	}
+
+	/**
+	 * uncommitted operation count
+	 * @return pending operation count
+	 */
+	public long getPendingOps() {
+		return writeCount.get() - committedCount;
+	}
+
+	/**
+	 * commit interval
+	 * @return interval milli seconds
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	/**
+	 * max pending operations
+	 * @return max pending operations
+	 */
+	public int getMaxPendingOps() {
+		return maxPendingOps;
+	}
+
+	/**
+	 * stop scheduler and commit pending operations
+	 * @throws LuceneRuntimeException when background commit failed after last sync
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(intervalMillis > 0 ? intervalMillis * 2 : 1000, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sync();
+	}
+}
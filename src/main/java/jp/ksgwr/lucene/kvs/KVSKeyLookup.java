@@ -0,0 +1,202 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * key lookup by TermsEnum.seekExact, without Query, Weight, Scorer and Collector.
+ * TermsEnum and PostingsEnum are reused per thread and per segment.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSKeyLookup {
+
+	/** key field name */
+	protected final String field;
+
+	/** reusable enums per thread, per segment core */
+	private final ThreadLocal<Map<Object, LeafEnums>> enums = new ThreadLocal<Map<Object, LeafEnums>>() {
+		@Override
+		protected Map<Object, LeafEnums> initialValue() {
+			return new WeakHashMap<Object, LeafEnums>();
+		}
+	};
+
+	/**
+	 * constructor
+	 * @param field key field name
+	 */
+	public KVSKeyLookup(String field) {
+		this.field = field;
+	}
+
+	/**
+	 * lookup live document id
+	 * @param reader index reader
+	 * @param term key term bytes
+	 * @return document id (top level), -1 when not found
+	 * @throws IOException IOException
+	 */
+	public int lookup(IndexReader reader, BytesRef term) throws IOException {
+		List<LeafReaderContext> leaves = reader.leaves();
+		// 新しいsegmentほど後ろにあるため後ろから探す
+		for (int i = leaves.size() - 1; i >= 0; i--) {
+			LeafReaderContext context = leaves.get(i);
+			int doc = lookup(context.reader(), term);
+			if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+				return context.docBase + doc;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * lookup all live document ids of term, it's used for non unique field
+	 * @param reader index reader
+	 * @param term term bytes
+	 * @return document ids (top level)
+	 * @throws IOException IOException
+	 */
+	public List<Integer> lookupDocs(IndexReader reader, BytesRef term) throws IOException {
+		List<Integer> docIds = new ArrayList<Integer>();
+		for (LeafReaderContext context : reader.leaves()) {
+			LeafReader leaf = context.reader();
+			LeafEnums leafEnums = getEnums(leaf);
+			if (leafEnums == null || !leafEnums.termsEnum.seekExact(term)) {
+				continue;
+			}
+			Bits liveDocs = leaf.getLiveDocs();
+			leafEnums.postingsEnum = leafEnums.termsEnum.postings(leafEnums.postingsEnum, PostingsEnum.NONE);
+			int doc;
+			while ((doc = leafEnums.postingsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+				if (liveDocs == null || liveDocs.get(doc)) {
+					docIds.add(context.docBase + doc);
+				}
+			}
+		}
+		return docIds;
+	}
+
+	/**
+	 * lookup live document ids of many keys.
+	 * terms must be sorted to seek TermsEnum forward.
+	 * @param reader index reader
+	 * @param sortedTerms sorted key term bytes, null term is skipped
+	 * @return document ids (top level) in order of terms, -1 when not found
+	 * @throws IOException IOException
+	 */
+	public int[] lookupAll(IndexReader reader, BytesRef[] sortedTerms) throws IOException {
+		int[] docIds = new int[sortedTerms.length];
+		Arrays.fill(docIds, -1);
+		int remain = sortedTerms.length;
+		List<LeafReaderContext> leaves = reader.leaves();
+		for (int i = leaves.size() - 1; i >= 0 && remain > 0; i--) {
+			LeafReaderContext context = leaves.get(i);
+			LeafReader leaf = context.reader();
+			LeafEnums leafEnums = getEnums(leaf);
+			if (leafEnums == null) {
+				continue;
+			}
+			Bits liveDocs = leaf.getLiveDocs();
+			for (int j = 0; j < sortedTerms.length; j++) {
+				if (docIds[j] >= 0 || sortedTerms[j] == null || !leafEnums.termsEnum.seekExact(sortedTerms[j])) {
+					continue;
+				}
+				int doc = leafEnums.nextLiveDoc(liveDocs);
+				if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+					docIds[j] = context.docBase + doc;
+					remain--;
+				}
+			}
+		}
+		return docIds;
+	}
+
+	/**
+	 * lookup live document id in segment
+	 * @param leaf segment reader
+	 * @param term key term bytes
+	 * @return document id in segment, NO_MORE_DOCS when not found
+	 * @throws IOException IOException
+	 */
+	public int lookup(LeafReader leaf, BytesRef term) throws IOException {
+		LeafEnums leafEnums = getEnums(leaf);
+		if (leafEnums == null || !leafEnums.termsEnum.seekExact(term)) {
+			return DocIdSetIterator.NO_MORE_DOCS;
+		}
+		return leafEnums.nextLiveDoc(leaf.getLiveDocs());
+	}
+
+	/**
+	 * get reusable enums of segment
+	 * @param leaf segment reader
+	 * @return enums, null when segment has no key field
+	 * @throws IOException IOException
+	 */
+	protected LeafEnums getEnums(LeafReader leaf) throws IOException {
+		Map<Object, LeafEnums> map = enums.get();
+		Object coreKey = leaf.getCoreCacheKey();
+		LeafEnums leafEnums = map.get(coreKey);
+		if (leafEnums == null) {
+			Terms terms = leaf.terms(field);
+			if (terms == null) {
+				return null;
+			}
+			leafEnums = new LeafEnums(terms.iterator());
+			map.put(coreKey, leafEnums);
+		}
+		return leafEnums;
+	}
+
+	/**
+	 * reusable enums of segment
+	 */
+	protected static class LeafEnums {
+
+		/** terms enum */
+		protected final TermsEnum termsEnum;
+
+		/** postings enum */
+		protected PostingsEnum postingsEnum;
+
+		/**
+		 * constructor
+		 * @param termsEnum terms enum
+		 */
+		protected LeafEnums(TermsEnum termsEnum) {
+			this.termsEnum = termsEnum;
+		}
+
+		/**
+		 * first live document of current term
+		 * @param liveDocs live docs, null when segment has no deletion
+		 * @return document id in segment, NO_MORE_DOCS when all documents are deleted
+		 * @throws IOException IOException
+		 */
+		protected int nextLiveDoc(Bits liveDocs) throws IOException {
+			postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+			int doc;
+			while ((doc = postingsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+				if (liveDocs == null || liveDocs.get(doc)) {
+					return doc;
+				}
+			}
+			return DocIdSetIterator.NO_MORE_DOCS;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+/**
+ * stored field visitor which reads one numeric field as primitive.
+ * string value written by older version is parsed.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSNumericFieldVisitor extends StoredFieldVisitor {
+
+	/** field name */
+	protected final String field;
+
+	/** if true, field is found */
+	protected boolean isFound;
+
+	/** value as long */
+	protected long longValue;
+
+	/** value as double */
+	protected double doubleValue;
+
+	/**
+	 * constructor
+	 * @param field field name
+	 */
+	public KVSNumericFieldVisitor(String field) {
+		this.field = field;
+	}
+
+	/**
+	 * reset for next document
+	 */
+	public void reset() {
+		isFound = false;
+		longValue = 0;
+		doubleValue = 0;
+	}
+
+	/**
+	 * set value
+	 * @param value value
+	 */
+	public void set(Number value) {
+		isFound = true;
+		longValue = value.longValue();
+		doubleValue = value.doubleValue();
+	}
+
+	@Override
+	public Status needsField(FieldInfo fieldInfo) throws IOException {
+		if (isFound) {
+			return Status.STOP;
+		}
+		return field.equals(fieldInfo.name) ? Status.YES : Status.NO;
+	}
+
+	@Override
+	public void intField(FieldInfo fieldInfo, int value) throws IOException {
+		isFound = true;
+		longValue = value;
+		doubleValue = value;
+	}
+
+	@Override
+	public void longField(FieldInfo fieldInfo, long value) throws IOException {
+		isFound = true;
+		longValue = value;
+		doubleValue = value;
+	}
+
+	@Override
+	public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+		isFound = true;
+		longValue = (long) value;
+		doubleValue = value;
+	}
+
+	@Override
+	public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+		isFound = true;
+		longValue = (long) value;
+		doubleValue = value;
+	}
+
+	@Override
+	public void stringField(FieldInfo fieldInfo, byte[] value) throws IOException {
+		// 旧形式の文字列で保存された値
+		String str = new String(value, StandardCharsets.UTF_8);
+		isFound = true;
+		try {
+			longValue = Long.parseLong(str);
+			doubleValue = longValue;
+		} catch (NumberFormatException e) {
+			doubleValue = Double.parseDouble(str);
+			longValue = (long) doubleValue;
+		}
+	}
+
+	/**
+	 * is field found
+	 * @return if true, field is found
+	 */
+	public boolean isFound() {
+		return isFound;
+	}
+
+	/**
+	 * value as long
+	 * @return value
+	 */
+	public long longValue() {
+		return longValue;
+	}
+
+	/**
+	 * value as double
+	 * @return value
+	 */
+	public double doubleValue() {
+		return doubleValue;
+	}
+}
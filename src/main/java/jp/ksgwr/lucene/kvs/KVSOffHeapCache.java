@@ -0,0 +1,281 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * serialized value cache outside java heap.
+ * values are appended to direct ByteBuffer slabs, and the oldest slab is evicted when bytes exceed budget.
+ * values loaded from searcher are cached only when the searcher reflects all invalidated writes.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSOffHeapCache {
+
+	/** default slab size */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	/** slab size */
+	protected final int slabSize;
+
+	/** max slab count */
+	protected final int maxSlabs;
+
+	/** slabs, oldest first */
+	private final ArrayDeque<Slab> slabs;
+
+	/** key term and location in slab */
+	private final HashMap<BytesRef, Location> index;
+
+	/** max write generation of invalidation */
+	private long invalidatedGeneration;
+
+	/** hit count */
+	private long hitCount;
+
+	/** miss count */
+	private long missCount;
+
+	/** evicted entry count */
+	private long evictionCount;
+
+	/**
+	 * constructor
+	 * @param maxBytes max off heap bytes
+	 * @param slabSize slab size, value larger than slab is not cached
+	 */
+	public KVSOffHeapCache(long maxBytes, int slabSize) {
+		if (slabSize <= 0 || maxBytes < slabSize) {
+			throw new IllegalArgumentException("maxBytes must be larger than slabSize");
+		}
+		this.slabSize = slabSize;
+		this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, maxBytes / slabSize);
+		this.slabs = new ArrayDeque<Slab>();
+		this.index = new HashMap<BytesRef, Location>();
+	}
+
+	/**
+	 * constructor
+	 * @param maxBytes max off heap bytes
+	 */
+	public KVSOffHeapCache(long maxBytes) {
+		this(maxBytes, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * get cached bytes, copied to heap
+	 * @param term key term bytes
+	 * @return bytes, null when not cached
+	 */
+	public synchronized byte[] get(BytesRef term) {
+		Location loc = index.get(term);
+		if (loc == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		byte[] data = new byte[loc.length];
+		ByteBuffer buf = loc.slab.buffer.duplicate();
+		buf.position(loc.offset);
+		buf.get(data);
+		return data;
+	}
+
+	/**
+	 * copy cached bytes to buffer without heap copy
+	 * @param term key term bytes
+	 * @param dst destination buffer, position is advanced by length
+	 * @return length, -1 when not cached
+	 * @throws BufferOverflowException dst doesn't have enough space
+	 */
+	public synchronized int get(BytesRef term, ByteBuffer dst) {
+		Location loc = index.get(term);
+		if (loc == null) {
+			missCount++;
+			return -1;
+		}
+		if (dst.remaining() < loc.length) {
+			throw new BufferOverflowException();
+		}
+		hitCount++;
+		ByteBuffer buf = loc.slab.buffer.duplicate();
+		buf.limit(loc.offset + loc.length);
+		buf.position(loc.offset);
+		dst.put(buf);
+		return loc.length;
+	}
+
+	/**
+	 * cache bytes loaded from searcher
+	 * @param term key term bytes
+	 * @param value serialized value
+	 * @param searcherGeneration write generation which searcher reflects
+	 * @return if true, value is cached
+	 */
+	public synchronized boolean put(BytesRef term, BytesRef value, long searcherGeneration) {
+		if (value == null || value.length > slabSize || searcherGeneration < invalidatedGeneration) {
+			return false;
+		}
+		Slab slab = slabs.peekLast();
+		if (slab == null || slab.remaining() < value.length) {
+			slab = nextSlab();
+		}
+		int offset = slab.buffer.position();
+		slab.buffer.put(value.bytes, value.offset, value.length);
+		BytesRef key = BytesRef.deepCopyOf(term);
+		slab.keys.add(key);
+		index.put(key, new Location(slab, offset, value.length));
+		return true;
+	}
+
+	/**
+	 * allocate new slab, reuse the oldest slab when slab count reaches max
+	 * @return empty slab
+	 */
+	private Slab nextSlab() {
+		Slab slab;
+		if (slabs.size() >= maxSlabs) {
+			slab = slabs.pollFirst();
+			for (BytesRef key : slab.keys) {
+				Location loc = index.get(key);
+				// 上書きされたkeyは別のslabを指している
+				if (loc != null && loc.slab == slab) {
+					index.remove(key);
+					evictionCount++;
+				}
+			}
+			slab.keys.clear();
+			slab.buffer.clear();
+		} else {
+			slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+		}
+		slabs.addLast(slab);
+		return slab;
+	}
+
+	/**
+	 * invalidate cached value when written
+	 * @param term key term bytes
+	 * @param generation write generation
+	 */
+	public synchronized void invalidate(BytesRef term, long generation) {
+		index.remove(term);
+		invalidatedGeneration = Math.max(invalidatedGeneration, generation);
+	}
+
+	/**
+	 * invalidate all cached values
+	 * @param generation write generation
+	 */
+	public synchronized void invalidateAll(long generation) {
+		index.clear();
+		for (Slab slab : slabs) {
+			slab.keys.clear();
+			slab.buffer.clear();
+		}
+		invalidatedGeneration = Math.max(invalidatedGeneration, generation);
+	}
+
+	/**
+	 * cached entry count
+	 * @return entry count
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * allocated off heap bytes
+	 * @return bytes
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long) slabs.size() * slabSize;
+	}
+
+	/**
+	 * hit count
+	 * @return hit count
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * miss count
+	 * @return miss count
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * evicted entry count
+	 * @return eviction count
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * direct buffer and keys written to it
+	 */
+	private static class Slab {
+
+		/** direct buffer */
+		final ByteBuffer buffer;
+
+		/** keys written to this slab */
+		final List<BytesRef> keys;
+
+		/**
+		 * constructor
+		 * @param buffer direct buffer
+		 */
+		Slab(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.keys = new ArrayList<BytesRef>();
+		}
+
+		/**
+		 * remaining bytes
+		 * @return remaining bytes
+		 */
+		int remaining() {
+			return buffer.remaining();
+		}
+	}
+
+	/**
+	 * value location in slab
+	 */
+	private static class Location {
+
+		/** slab */
+		final Slab slab;
+
+		/** offset in slab */
+		final int offset;
+
+		/** value length */
+		final int length;
+
+		/**
+		 * constructor
+		 * @param slab slab
+		 * @param offset offset in slab
+		 * @param length value length
+		 */
+		Location(Slab slab, int offset, int length) {
+			this.slab = slab;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
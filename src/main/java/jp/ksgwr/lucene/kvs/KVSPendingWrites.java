@@ -0,0 +1,355 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.util.Collections;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * latest writes which searcher may not reflect yet.
+ * entries are purged when searcher reflects their write generation.
+ * they are sorted by key term, so range of keys is read without copy.
+ *
+ * @author ksgwr
+ *
+ * @param <V> ValueObject
+ */
+public class KVSPendingWrites<V> {
+
+	/** key term and latest write, sorted by term */
+	private final ConcurrentSkipListMap<BytesRef, PendingWrite<V>> map;
+
+	/** entry count, skip list doesn't count size in constant time */
+	private final AtomicInteger size;
+
+	/** incremented before writes are purged */
+	private final AtomicLong purgeSequence;
+
+	/** write generation of last clear */
+	private final AtomicLong clearedGeneration;
+
+	/** prefix clears which searcher may not reflect yet */
+	private final CopyOnWriteArrayList<PrefixClear> prefixClears;
+
+	/**
+	 * constructor
+	 */
+	public KVSPendingWrites() {
+		this.map = new ConcurrentSkipListMap<BytesRef, PendingWrite<V>>();
+		this.size = new AtomicInteger();
+		this.purgeSequence = new AtomicLong();
+		this.clearedGeneration = new AtomicLong(0);
+		this.prefixClears = new CopyOnWriteArrayList<PrefixClear>();
+	}
+
+	/**
+	 * record put
+	 * @param term key term bytes
+	 * @param value value
+	 * @param generation write generation
+	 */
+	public void put(BytesRef term, V value, long generation) {
+		put(term, value, null, generation);
+	}
+
+	/**
+	 * record put with stored bytes
+	 * @param term key term bytes
+	 * @param value value
+	 * @param bytes stored bytes of value, null when value is not stored as binary
+	 * @param generation write generation
+	 */
+	public void put(BytesRef term, V value, BytesRef bytes, long generation) {
+		record(term, new PendingWrite<V>(value, bytes, false, true, generation));
+	}
+
+	/**
+	 * record put whose value is not held, value is read from searcher which reflects generation
+	 * @param term key term bytes
+	 * @param generation write generation
+	 */
+	public void touch(BytesRef term, long generation) {
+		record(term, new PendingWrite<V>(null, null, false, false, generation));
+	}
+
+	/**
+	 * record delete
+	 * @param term key term bytes
+	 * @param generation write generation
+	 */
+	public void delete(BytesRef term, long generation) {
+		record(term, new PendingWrite<V>(null, null, true, true, generation));
+	}
+
+	/**
+	 * replace latest write of key
+	 * @param term key term bytes
+	 * @param write write
+	 */
+	private void record(BytesRef term, PendingWrite<V> write) {
+		if (map.put(term, write) == null) {
+			size.incrementAndGet();
+		}
+	}
+
+	/**
+	 * remove write of key unless it's replaced by newer write
+	 * @param term key term bytes
+	 * @param write write
+	 */
+	private void remove(BytesRef term, PendingWrite<V> write) {
+		if (map.remove(term, write)) {
+			size.decrementAndGet();
+		}
+	}
+
+	/**
+	 * record clear, all keys are deleted
+	 * @param generation write generation
+	 */
+	public void clear(long generation) {
+		for (Entry<BytesRef, PendingWrite<V>> entry : map.entrySet()) {
+			remove(entry.getKey(), entry.getValue());
+		}
+		prefixClears.clear();
+		long current;
+		while ((current = clearedGeneration.get()) < generation) {
+			if (clearedGeneration.compareAndSet(current, generation)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * record clear of keys which start with prefix
+	 * @param prefix key term prefix
+	 * @param generation write generation
+	 */
+	public void clearPrefix(BytesRef prefix, long generation) {
+		BytesRef copy = BytesRef.deepCopyOf(prefix);
+		prefixClears.add(new PrefixClear(copy, generation));
+		for (Entry<BytesRef, PendingWrite<V>> entry : range(copy).entrySet()) {
+			remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * record prefix clears and writes staged in other pending writes, prefix clears are recorded first
+	 * @param staged staged writes, writes are newer than its prefix clears
+	 */
+	public void putAll(KVSPendingWrites<V> staged) {
+		for (PrefixClear clear : staged.prefixClears) {
+			clearPrefix(clear.prefix, clear.generation);
+		}
+		for (Entry<BytesRef, PendingWrite<V>> entry : staged.map.entrySet()) {
+			record(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * latest write of key
+	 * @param term key term bytes
+	 * @return write, null when searcher may reflect latest write
+	 */
+	public PendingWrite<V> get(BytesRef term) {
+		return map.get(term);
+	}
+
+	/**
+	 * key terms and writes sorted by term, it's a live view.
+	 * iteration is weakly consistent with concurrent writes, and writes may be purged while iterating,
+	 * so reader which merges searcher checks {@link #getPurgeSequence()}.
+	 * @return unmodifiable view
+	 */
+	public NavigableMap<BytesRef, PendingWrite<V>> entries() {
+		return Collections.unmodifiableNavigableMap(map);
+	}
+
+	/**
+	 * key terms and writes of keys which start with prefix, it's a live view like {@link #entries()}
+	 * @param prefix key term prefix
+	 * @return unmodifiable view
+	 */
+	public NavigableMap<BytesRef, PendingWrite<V>> entries(BytesRef prefix) {
+		return Collections.unmodifiableNavigableMap(range(prefix));
+	}
+
+	/**
+	 * writes of keys which start with prefix
+	 * @param prefix key term prefix
+	 * @return live view
+	 */
+	private NavigableMap<BytesRef, PendingWrite<V>> range(BytesRef prefix) {
+		BytesRef end = prefixEnd(prefix);
+		return end == null ? map.tailMap(prefix, true) : map.subMap(prefix, true, end, false);
+	}
+
+	/**
+	 * least term which is greater than all terms starting with prefix
+	 * @param prefix key term prefix
+	 * @return term, null when there is no such term
+	 */
+	static BytesRef prefixEnd(BytesRef prefix) {
+		for (int i = prefix.length - 1; i >= 0; i--) {
+			int b = prefix.bytes[prefix.offset + i] & 0xff;
+			if (b != 0xff) {
+				byte[] end = new byte[i + 1];
+				System.arraycopy(prefix.bytes, prefix.offset, end, 0, i);
+				end[i] = (byte) (b + 1);
+				return new BytesRef(end);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * sequence of purge, reader which read searcher and writes retries when it changes.
+	 * it's incremented after searcher is refleshed and before writes are removed,
+	 * so searcher acquired after reading sequence covers writes removed before it.
+	 * @return sequence
+	 */
+	public long getPurgeSequence() {
+		return purgeSequence.get();
+	}
+
+	/**
+	 * test clear which searcher doesn't reflect
+	 * @param searcherGeneration write generation which searcher reflects
+	 * @return if true, keys without pending write are deleted
+	 */
+	public boolean isClearedAfter(long searcherGeneration) {
+		return searcherGeneration < clearedGeneration.get();
+	}
+
+	/**
+	 * test clear or prefix clear of key which searcher doesn't reflect
+	 * @param term key term bytes
+	 * @param searcherGeneration write generation which searcher reflects
+	 * @return if true, key is deleted when it has no pending write
+	 */
+	public boolean isClearedAfter(BytesRef term, long searcherGeneration) {
+		if (isClearedAfter(searcherGeneration)) {
+			return true;
+		}
+		for (PrefixClear clear : prefixClears) {
+			if (searcherGeneration < clear.generation && StringHelper.startsWith(term, clear.prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * remove writes which searcher reflects
+	 * @param searcherGeneration write generation which searcher reflects
+	 */
+	public void purge(long searcherGeneration) {
+		boolean isPurging = false;
+		for (Entry<BytesRef, PendingWrite<V>> entry : map.entrySet()) {
+			PendingWrite<V> write = entry.getValue();
+			if (write.generation <= searcherGeneration) {
+				if (!isPurging) {
+					purgeSequence.incrementAndGet();
+					isPurging = true;
+				}
+				// 新しい書き込みに置き換わっていれば残す
+				remove(entry.getKey(), write);
+			}
+		}
+		for (PrefixClear clear : prefixClears) {
+			if (clear.generation <= searcherGeneration) {
+				prefixClears.remove(clear);
+			}
+		}
+	}
+
+	/**
+	 * count keys which start with prefix and are put by pending writes
+	 * @param prefix key term prefix
+	 * @return count
+	 */
+	public int countPrefix(BytesRef prefix) {
+		int count = 0;
+		for (PendingWrite<V> write : range(prefix).values()) {
+			if (!write.isDeleted) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * pending write count
+	 * @return count
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * pending write
+	 *
+	 * @param <V> ValueObject
+	 */
+	public static class PendingWrite<V> {
+
+		/** value, null when deleted */
+		public final V value;
+
+		/** stored bytes of value, null when value is not stored as binary */
+		public final BytesRef bytes;
+
+		/** if true, key is deleted */
+		public final boolean isDeleted;
+
+		/** if false, value is not held and must be read from index */
+		public final boolean hasValue;
+
+		/** write generation */
+		public final long generation;
+
+		/**
+		 * constructor
+		 * @param value value
+		 * @param bytes stored bytes of value
+		 * @param isDeleted if true, key is deleted
+		 * @param hasValue if false, value is not held
+		 * @param generation write generation
+		 */
+		PendingWrite(V value, BytesRef bytes, boolean isDeleted, boolean hasValue, long generation) {
+			this.value = value;
+			this.bytes = bytes;
+			this.isDeleted = isDeleted;
+			this.hasValue = hasValue;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * prefix clear
+	 */
+	private static class PrefixClear {
+
+		/** key term prefix */
+		final BytesRef prefix;
+
+		/** write generation */
+		final long generation;
+
+		/**
+		 * constructor
+		 * @param prefix key term prefix
+		 * @param generation write generation
+		 */
+		PrefixClear(BytesRef prefix, long generation) {
+			this.prefix = prefix;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+/**
+ * reusable stored field visitor, load all stored fields to new document.
+ * unlike DocumentStoredFieldVisitor, one visitor can load many documents.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSStoredFieldVisitor extends StoredFieldVisitor {
+
+	/** loading document */
+	protected Document doc;
+
+	/**
+	 * load document
+	 * @param leaf segment reader
+	 * @param docId document id in segment
+	 * @return document
+	 * @throws IOException IOException
+	 */
+	public Document load(LeafReader leaf, int docId) throws IOException {
+		doc = new Document();
+		leaf.document(docId, this);
+		Document loaded = doc;
+		doc = null;
+		return loaded;
+	}
+
+	@Override
+	public Status needsField(FieldInfo fieldInfo) throws IOException {
+		return Status.YES;
+	}
+
+	@Override
+	public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+		doc.add(new StoredField(fieldInfo.name, value));
+	}
+
+	@Override
+	public void stringField(FieldInfo fieldInfo, byte[] value) throws IOException {
+		doc.add(new StoredField(fieldInfo.name, new String(value, StandardCharsets.UTF_8)));
+	}
+
+	@Override
+	public void intField(FieldInfo fieldInfo, int value) throws IOException {
+		doc.add(new StoredField(fieldInfo.name, value));
+	}
+
+	@Override
+	public void longField(FieldInfo fieldInfo, long value) throws IOException {
+		doc.add(new StoredField(fieldInfo.name, value));
+	}
+
+	@Override
+	public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+		doc.add(new StoredField(fieldInfo.name, value));
+	}
+
+	@Override
+	public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+		doc.add(new StoredField(fieldInfo.name, value));
+	}
+}
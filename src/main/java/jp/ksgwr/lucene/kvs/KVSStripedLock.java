@@ -0,0 +1,93 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * striped locks of key terms.
+ * keys are hashed to fixed count of locks, so memory doesn't grow with keys.
+ *
+ * @author ksgwr
+ *
+ */
+public class KVSStripedLock {
+
+	/** default stripe count */
+	public static final int DEFAULT_STRIPES = 64;
+
+	/** hash seed */
+	private static final int SEED = 0x3c6ef372;
+
+	/** locks */
+	private final ReentrantLock[] locks;
+
+	/**
+	 * constructor
+	 * @param stripes stripe count, rounded up to power of 2
+	 */
+	public KVSStripedLock(int stripes) {
+		if (stripes <= 0) {
+			throw new IllegalArgumentException("stripes must be positive");
+		}
+		int size = Integer.highestOneBit(stripes);
+		if (size < stripes) {
+			size <<= 1;
+		}
+		this.locks = new ReentrantLock[size];
+		for (int i = 0; i < size; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * constructor
+	 */
+	public KVSStripedLock() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * lock of key term
+	 * @param term key term bytes
+	 * @return lock
+	 */
+	public ReentrantLock get(BytesRef term) {
+		return locks[StringHelper.murmurhash3_x86_32(term, SEED) & (locks.length - 1)];
+	}
+
+	/**
+	 * lock all stripes in fixed order.
+	 * a thread which already holds a stripe would deadlock with another lockAll,
+	 * so it's rejected.
+	 * @throws IllegalStateException when current thread holds a stripe
+	 */
+	public void lockAll() {
+		for (ReentrantLock lock : locks) {
+			if (lock.isHeldByCurrentThread()) {
+				throw new IllegalStateException("key lock is already held by current thread");
+			}
+		}
+		for (ReentrantLock lock : locks) {
+			lock.lock();
+		}
+	}
+
+	/**
+	 * unlock all stripes
+	 */
+	public void unlockAll() {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+	}
+
+	/**
+	 * stripe count
+	 * @return stripe count
+	 */
+	public int getStripes() {
+		return locks.length;
+	}
+}
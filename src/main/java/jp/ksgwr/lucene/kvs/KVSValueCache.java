@@ -0,0 +1,357 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * LRU value cache in front of index, bounded by entry count and stored bytes.
+ * values loaded from searcher are cached only when the searcher reflects all invalidated writes.
+ * keys are hashed to segments which have own lock and LRU order, so readers of different keys
+ * don't wait for each other. budgets are split among segments.
+ *
+ * @author ksgwr
+ *
+ * @param <V> ValueObject
+ */
+public class KVSValueCache<V> {
+
+	/** default max segment count */
+	public static final int DEFAULT_SEGMENTS = 16;
+
+	/** min entries of segment, small cache has fewer segments */
+	public static final int MIN_SEGMENT_ENTRIES = 64;
+
+	/** min stored bytes of segment, small cache has fewer segments */
+	public static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+
+	/** hash seed */
+	private static final int SEED = 0x7f4a7c15;
+
+	/** max entries, 0 or less means unlimited */
+	protected final int maxEntries;
+
+	/** max stored bytes, 0 or less means unlimited */
+	protected final long maxBytes;
+
+	/** segments */
+	private final Segment<V>[] segments;
+
+	/**
+	 * constructor
+	 * @param maxEntries max entries, 0 or less means unlimited
+	 * @param maxBytes max stored bytes, 0 or less means unlimited
+	 */
+	public KVSValueCache(int maxEntries, long maxBytes) {
+		this(maxEntries, maxBytes, segmentCount(maxEntries, maxBytes));
+	}
+
+	/**
+	 * constructor
+	 * @param maxEntries max entries, 0 or less means unlimited
+	 * @param maxBytes max stored bytes, 0 or less means unlimited
+	 * @param segments segment count, rounded down to power of 2.
+	 * each segment has 1/segments of budgets, so value larger than it is not cached
+	 */
+	@SuppressWarnings("unchecked")
+	public KVSValueCache(int maxEntries, long maxBytes, int segments) {
+		if (maxEntries <= 0 && maxBytes <= 0) {
+			throw new IllegalArgumentException("maxEntries or maxBytes must be positive");
+		}
+		if (segments <= 0) {
+			throw new IllegalArgumentException("segments must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		int size = Integer.highestOneBit(segments);
+		this.segments = new Segment[size];
+		for (int i = 0; i < size; i++) {
+			// 端数は先頭のsegmentに割り当てる
+			int entries = maxEntries > 0 ? maxEntries / size + (i < maxEntries % size ? 1 : 0) : 0;
+			long bytes = maxBytes > 0 ? maxBytes / size + (i < maxBytes % size ? 1 : 0) : 0;
+			this.segments[i] = new Segment<V>(entries, bytes);
+		}
+	}
+
+	/**
+	 * segment count which keeps each segment large enough
+	 * @param maxEntries max entries, 0 or less means unlimited
+	 * @param maxBytes max stored bytes, 0 or less means unlimited
+	 * @return segment count
+	 */
+	private static int segmentCount(int maxEntries, long maxBytes) {
+		int segments = DEFAULT_SEGMENTS;
+		while (segments > 1 && ((maxEntries > 0 && maxEntries / segments < MIN_SEGMENT_ENTRIES)
+				|| (maxBytes > 0 && maxBytes / segments < MIN_SEGMENT_BYTES))) {
+			segments >>= 1;
+		}
+		return segments;
+	}
+
+	/**
+	 * segment of key term
+	 * @param term key term bytes
+	 * @return segment
+	 */
+	private Segment<V> segment(BytesRef term) {
+		return segments[StringHelper.murmurhash3_x86_32(term, SEED) & (segments.length - 1)];
+	}
+
+	/**
+	 * get cached value
+	 * @param term key term bytes
+	 * @return value, null when not cached
+	 */
+	public V get(BytesRef term) {
+		return segment(term).get(term);
+	}
+
+	/**
+	 * cache value loaded from searcher
+	 * @param term key term bytes
+	 * @param value value
+	 * @param bytes stored bytes of value
+	 * @param searcherGeneration write generation which searcher reflects
+	 * @return if true, value is cached
+	 */
+	public boolean put(BytesRef term, V value, int bytes, long searcherGeneration) {
+		if (value == null) {
+			return false;
+		}
+		return segment(term).put(term, value, bytes, searcherGeneration);
+	}
+
+	/**
+	 * invalidate cached value when written
+	 * @param term key term bytes
+	 * @param generation write generation
+	 */
+	public void invalidate(BytesRef term, long generation) {
+		segment(term).invalidate(term, generation);
+	}
+
+	/**
+	 * invalidate all cached values
+	 * @param generation write generation
+	 */
+	public void invalidateAll(long generation) {
+		for (Segment<V> segment : segments) {
+			segment.invalidateAll(generation);
+		}
+	}
+
+	/**
+	 * segment count
+	 * @return segment count
+	 */
+	public int getSegments() {
+		return segments.length;
+	}
+
+	/**
+	 * cached entry count
+	 * @return entry count
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * cached stored bytes
+	 * @return bytes
+	 */
+	public long getTotalBytes() {
+		long bytes = 0;
+		for (Segment<V> segment : segments) {
+			bytes += segment.getTotalBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * hit count
+	 * @return hit count
+	 */
+	public long getHitCount() {
+		long count = 0;
+		for (Segment<V> segment : segments) {
+			count += segment.getHitCount();
+		}
+		return count;
+	}
+
+	/**
+	 * miss count
+	 * @return miss count
+	 */
+	public long getMissCount() {
+		long count = 0;
+		for (Segment<V> segment : segments) {
+			count += segment.getMissCount();
+		}
+		return count;
+	}
+
+	/**
+	 * eviction count
+	 * @return eviction count
+	 */
+	public long getEvictionCount() {
+		long count = 0;
+		for (Segment<V> segment : segments) {
+			count += segment.getEvictionCount();
+		}
+		return count;
+	}
+
+	/**
+	 * hit rate
+	 * @return hit rate, NaN when no request
+	 */
+	public double getHitRate() {
+		long hitCount = getHitCount();
+		long requests = hitCount + getMissCount();
+		return requests == 0 ? Double.NaN : (double) hitCount / requests;
+	}
+
+	/**
+	 * LRU segment guarded by own lock
+	 */
+	private static class Segment<V> {
+
+		/** max entries, 0 or less means unlimited */
+		final int maxEntries;
+
+		/** max stored bytes, 0 or less means unlimited */
+		final long maxBytes;
+
+		/** key term and value (access order) */
+		private final LinkedHashMap<BytesRef, CacheEntry<V>> map;
+
+		/** total stored bytes of cached values */
+		private long totalBytes;
+
+		/** max write generation of invalidation in this segment */
+		private long invalidatedGeneration;
+
+		/** hit count */
+		private long hitCount;
+
+		/** miss count */
+		private long missCount;
+
+		/** eviction count */
+		private long evictionCount;
+
+		/**
+		 * constructor
+		 * @param maxEntries max entries, 0 or less means unlimited
+		 * @param maxBytes max stored bytes, 0 or less means unlimited
+		 */
+		Segment(int maxEntries, long maxBytes) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+			this.map = new LinkedHashMap<BytesRef, CacheEntry<V>>(16, 0.75f, true);
+		}
+
+		synchronized V get(BytesRef term) {
+			CacheEntry<V> entry = map.get(term);
+			if (entry == null) {
+				missCount++;
+				return null;
+			}
+			hitCount++;
+			return entry.value;
+		}
+
+		synchronized boolean put(BytesRef term, V value, int bytes, long searcherGeneration) {
+			// 古いsearcherから読んだ値はinvalidate済みの書き込みを反映していない可能性がある
+			if (searcherGeneration < invalidatedGeneration || (maxBytes > 0 && bytes > maxBytes)) {
+				return false;
+			}
+			CacheEntry<V> old = map.put(BytesRef.deepCopyOf(term), new CacheEntry<V>(value, bytes));
+			if (old != null) {
+				totalBytes -= old.bytes;
+			}
+			totalBytes += bytes;
+			evict();
+			return true;
+		}
+
+		synchronized void invalidate(BytesRef term, long generation) {
+			CacheEntry<V> old = map.remove(term);
+			if (old != null) {
+				totalBytes -= old.bytes;
+			}
+			invalidatedGeneration = Math.max(invalidatedGeneration, generation);
+		}
+
+		synchronized void invalidateAll(long generation) {
+			map.clear();
+			totalBytes = 0;
+			invalidatedGeneration = Math.max(invalidatedGeneration, generation);
+		}
+
+		/**
+		 * evict least recently used entries over budget
+		 */
+		private void evict() {
+			Iterator<Entry<BytesRef, CacheEntry<V>>> ite = map.entrySet().iterator();
+			while (ite.hasNext() && ((maxEntries > 0 && map.size() > maxEntries)
+					|| (maxBytes > 0 && totalBytes > maxBytes))) {
+				totalBytes -= ite.next().getValue().bytes;
+				ite.remove();
+				evictionCount++;
+			}
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+
+		synchronized long getTotalBytes() {
+			return totalBytes;
+		}
+
+		synchronized long getHitCount() {
+			return hitCount;
+		}
+
+		synchronized long getMissCount() {
+			return missCount;
+		}
+
+		synchronized long getEvictionCount() {
+			return evictionCount;
+		}
+	}
+
+	/**
+	 * cached value and its stored bytes
+	 */
+	private static class CacheEntry<V> {
+
+		/** value */
+		final V value;
+
+		/** stored bytes */
+		final int bytes;
+
+		/**
+		 * constructor
+		 * @param value value
+		 * @param bytes stored bytes
+		 */
+		CacheEntry(V value, int bytes) {
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+}
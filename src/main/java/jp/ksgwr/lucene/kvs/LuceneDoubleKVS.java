@@ -3,6 +3,8 @@ package jp.ksgwr.lucene.kvs;
 import java.io.File;
 import java.io.IOException;
 
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 
 /**
@@ -12,7 +14,7 @@ import org.apache.lucene.store.Directory;
  *
  * @param <K> KeyObject
  */
-public class LuceneDoubleKVS<K> extends LuceneKVS<K, Double> {
+public class LuceneDoubleKVS<K> extends LuceneNumericKVS<K, Double> {
 
 	/**
 	 * constructor
@@ -25,6 +27,18 @@ public class LuceneDoubleKVS<K> extends LuceneKVS<K, Double> {
 		super(directory, file, isVolatile);
 	}
 
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config
+	 * @throws IOException IOException
+	 */
+	public LuceneDoubleKVS(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
+		super(directory, file, isVolatile, config);
+	}
+
 	/**
 	 * constructor
 	 * @throws IOException IOException
@@ -39,4 +53,19 @@ public class LuceneDoubleKVS<K> extends LuceneKVS<K, Double> {
 		return Double.valueOf(val);
 	}
 
+	@Override
+	public Double valueOf(Number val) {
+		return Double.valueOf(val.doubleValue());
+	}
+
+	@Override
+	protected Double add(Double base, long delta) {
+		return valueOf(base == null ? delta : base.doubleValue() + delta);
+	}
+
+	@Override
+	public StoredField writeValue(Double val, String valueFieldName) {
+		return new StoredField(valueFieldName, val.doubleValue());
+	}
+
 }
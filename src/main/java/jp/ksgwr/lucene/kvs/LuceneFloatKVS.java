@@ -3,6 +3,8 @@ package jp.ksgwr.lucene.kvs;
 import java.io.File;
 import java.io.IOException;
 
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 
 /**
@@ -12,7 +14,7 @@ import org.apache.lucene.store.Directory;
  *
  * @param <K> KeyObject
  */
-public class LuceneFloatKVS<K> extends LuceneKVS<K, Float> {
+public class LuceneFloatKVS<K> extends LuceneNumericKVS<K, Float> {
 
 	/**
 	 * constructor
@@ -25,6 +27,18 @@ public class LuceneFloatKVS<K> extends LuceneKVS<K, Float> {
 		super(directory, file, isVolatile);
 	}
 
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config
+	 * @throws IOException IOException
+	 */
+	public LuceneFloatKVS(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
+		super(directory, file, isVolatile, config);
+	}
+
 	/**
 	 * constructor
 	 * @throws IOException IOException
@@ -38,4 +52,30 @@ public class LuceneFloatKVS<K> extends LuceneKVS<K, Float> {
 		return Float.valueOf(val);
 	}
 
+	@Override
+	public Float valueOf(Number val) {
+		return Float.valueOf(val.floatValue());
+	}
+
+	@Override
+	protected Float add(Float base, long delta) {
+		return valueOf(base == null ? delta : base.doubleValue() + delta);
+	}
+
+	@Override
+	public StoredField writeValue(Float val, String valueFieldName) {
+		return new StoredField(valueFieldName, val.floatValue());
+	}
+
+	/**
+	 * get Value as float without boxing
+	 * @param key key
+	 * @param defaultValue value when not found
+	 * @return value
+	 */
+	public float getFloat(Object key, float defaultValue) {
+		KVSNumericFieldVisitor visitor = loadNumeric(key);
+		return visitor != null ? (float) visitor.doubleValue() : defaultValue;
+	}
+
 }
@@ -3,6 +3,8 @@ package jp.ksgwr.lucene.kvs;
 import java.io.File;
 import java.io.IOException;
 
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 
 /**
@@ -12,7 +14,7 @@ import org.apache.lucene.store.Directory;
  *
  * @param <K> KeyObject
  */
-public class LuceneIntegerKVS<K> extends LuceneKVS<K, Integer> {
+public class LuceneIntegerKVS<K> extends LuceneNumericKVS<K, Integer> {
 
 	/**
 	 * constructor
@@ -25,6 +27,18 @@ public class LuceneIntegerKVS<K> extends LuceneKVS<K, Integer> {
 		super(directory, file, isVolatile);
 	}
 
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config
+	 * @throws IOException IOException
+	 */
+	public LuceneIntegerKVS(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
+		super(directory, file, isVolatile, config);
+	}
+
 	/**
 	 * constructor
 	 * @throws IOException IOException
@@ -38,4 +52,25 @@ public class LuceneIntegerKVS<K> extends LuceneKVS<K, Integer> {
 		return Integer.valueOf(val);
 	}
 
+	@Override
+	public Integer valueOf(Number val) {
+		return Integer.valueOf(val.intValue());
+	}
+
+	@Override
+	public StoredField writeValue(Integer val, String valueFieldName) {
+		return new StoredField(valueFieldName, val.intValue());
+	}
+
+	/**
+	 * get Value as int without boxing
+	 * @param key key
+	 * @param defaultValue value when not found
+	 * @return value
+	 */
+	public int getInt(Object key, int defaultValue) {
+		KVSNumericFieldVisitor visitor = loadNumeric(key);
+		return visitor != null ? (int) visitor.longValue() : defaultValue;
+	}
+
 }
@@ -5,6 +5,7 @@ import java.io.IOException;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 
 /**
@@ -27,6 +28,18 @@ public abstract class LuceneKVS<K, V> extends LuceneKVSBase<K, V> {
 		super(directory, file, isVolatile);
 	}
 
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config
+	 * @throws IOException IOException
+	 */
+	public LuceneKVS(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
+		super(directory, file, isVolatile, config);
+	}
+
 	/**
 	 * constructor
 	 * @throws IOException IOException
@@ -3,13 +3,33 @@ package jp.ksgwr.lucene.kvs;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import jp.ksgwr.lucene.exception.LuceneRuntimeException;
+import jp.ksgwr.lucene.kvs.KVSPendingWrites.PendingWrite;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
@@ -18,18 +38,32 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.ReferenceManager.RefreshListener;
 import org.apache.lucene.search.SearcherManager;
-import org.apache.lucene.search.Sort;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 import org.apache.lucene.util.Version;
 
 /**
@@ -49,6 +83,15 @@ public abstract class LuceneKVSBase<K, V> implements Map<K, V> {
 	/** Value Field Name */
 	public static final String VAL = "val";
 
+	/** Value Hash Field Name */
+	public static final String VAL_HASH = "valhash";
+
+	/** default max pending writes before reflesh */
+	public static final int DEFAULT_MAX_PENDING_WRITES = 10000;
+
+	/** entries per import task */
+	protected static final int IMPORT_CHUNK_SIZE = 1000;
+
 	/** Lucene Directory */
 	protected Directory directory;
 
@@ -58,21 +101,87 @@ public abstract class LuceneKVSBase<K, V> implements Map<K, V> {
 	/** Lucene Index Writer */
 	protected IndexWriter writer;
 
+	/** Lucene Index Writer tracking generation */
+	protected TrackingIndexWriter trackingWriter;
+
 	/** Lucene Searcher Manager */
 	protected SearcherManager manager;
 
+	/** near real time reopen thread, null when searcher is refleshed by reading and commit */
+	protected ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+
 	/** if true, auto commit in writing */
 	protected boolean isAutoCommit;
 
 	/** if true, async reflesh in writing */
 	protected boolean isAsyncReflesh;
 
-	/** documents size */
+	/** live documents size, it's updated by each write under key lock */
 	protected AtomicInteger numDocs;
 
 	/** if true, delete file automatically */
 	protected boolean isVolatile;
 
+	/** group commit scheduler, if null commit by each writing */
+	protected KVSCommitScheduler commitScheduler;
+
+	/** async reflesh thread */
+	protected ExecutorService refleshExecutor;
+
+	/** import worker threads, they are reused by each import */
+	protected ExecutorService importExecutor;
+
+	/** if true, async reflesh is already queued */
+	protected AtomicBoolean isRefleshQueued;
+
+	/** key lookup engine */
+	protected KVSKeyLookup keyLookup;
+
+	/** value hash lookup engine */
+	protected KVSKeyLookup valueHashLookup;
+
+	/** if true, hash of stored value is indexed for containsValue */
+	protected boolean isValueHashIndexed;
+
+	/** write generation covered by last commit */
+	protected AtomicLong committedGeneration;
+
+	/** write generation covered by current searcher */
+	protected AtomicLong searchingGeneration;
+
+	/** Bloom filter of keys, null when filter is disabled */
+	protected volatile KVSBloomFilter bloomFilter;
+
+	/** if true, Bloom filter contains all keys and can be used for reading */
+	protected volatile boolean isBloomFilterReady;
+
+	/** value cache, null when cache is disabled */
+	protected KVSValueCache<V> valueCache;
+
+	/** striped key locks for atomic update */
+	protected KVSStripedLock keyLocks;
+
+	/** writes which searcher doesn't reflect yet */
+	protected KVSPendingWrites<V> pendingWrites;
+
+	/** max pending writes, searcher is refleshed when pending writes exceed it */
+	protected int maxPendingWrites;
+
+	/** lock of commit, write batch is not split by commit */
+	protected final Object commitLock = new Object();
+
+	/** lock held while searcher is refleshed, write batch holds it not to expose a part of batch */
+	protected final ReentrantLock refleshLock = new ReentrantLock();
+
+	/** writes of batch being applied, they are recorded to pending writes after the last write. accessed under all key locks */
+	private KVSPendingWrites<V> stagedWrites;
+
+	/** document count delta of batch being applied */
+	private int stagedDocs;
+
+	/** shutdown hook which closes index when it's not closed */
+	protected final Thread shutdownHook;
+
 	/**
 	 * constructor
 	 * @param directory Lucene Directory
@@ -81,24 +190,49 @@ public abstract class LuceneKVSBase<K, V> implements Map<K, V> {
 	 * @throws IOException IOException
 	 */
 	public LuceneKVSBase(Directory directory, File file, boolean isVolatile) throws IOException {
+		this(directory, file, isVolatile, null);
+	}
+
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config. it must not be shared with other writer
+	 * @throws IOException IOException
+	 */
+	public LuceneKVSBase(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
 		this.directory = directory;
 		this.file = file;
-		Analyzer analyzer = new KeywordAnalyzer();
-		IndexWriterConfig config = new IndexWriterConfig(analyzer);
+		if (config == null) {
+			Analyzer analyzer = new KeywordAnalyzer();
+			config = new IndexWriterConfig(analyzer);
+		}
 		this.writer = new IndexWriter(directory, config);
 		// LuceneObjectKVS avoid "no segments* file found in RAMDirectory" Exception
 		this.writer.commit();
+		this.trackingWriter = new TrackingIndexWriter(writer);
 
-		this.manager = new SearcherManager(directory, new KVSSearcherFactory());
+		this.keyLookup = new KVSKeyLookup(KEY);
+		this.valueHashLookup = new KVSKeyLookup(VAL_HASH);
+		this.committedGeneration = new AtomicLong(0);
+		this.searchingGeneration = new AtomicLong(0);
+		this.keyLocks = new KVSStripedLock();
+		this.pendingWrites = new KVSPendingWrites<V>();
+		this.maxPendingWrites = DEFAULT_MAX_PENDING_WRITES;
+		// writerから開くため、commitせずにrefleshで書き込みが見える
+		this.manager = new SearcherManager(writer, true, new KVSSearcherFactory());
+		this.manager.addListener(new GenerationListener());
 		this.isAutoCommit = true;
 		this.isAsyncReflesh = true;
 
 		this.numDocs = new AtomicInteger(writer.numDocs());
 		this.isVolatile = isVolatile;
+		this.isRefleshQueued = new AtomicBoolean(false);
 
 		@SuppressWarnings("rawtypes")
 		final LuceneKVSBase own = this;
-		Runtime.getRuntime().addShutdownHook(new Thread() {
+		this.shutdownHook = new Thread() {
 			@Override
 			public void run() {
 				try {
@@ -107,7 +241,8 @@ public abstract class LuceneKVSBase<K, V> implements Map<K, V> {
 					e.printStackTrace();
 				}
 			}
-		});
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
 	}
 
 	/**
@@ -140,11 +275,56 @@ public abstract class LuceneKVSBase<K, V> implements Map<K, V> {
 	 */
 	@SuppressWarnings("rawtypes")
 	private static void close(LuceneKVSBase own) throws IOException {
+		own.beforeClose();
+		RuntimeException failure = null;
+		if (own.commitScheduler != null) {
+			try {
+				own.commitScheduler.close();
+			} catch (RuntimeException e) {
+				// commitの失敗を伝える前にindexを閉じる
+				failure = e;
+			}
+			own.commitScheduler = null;
+		}
+		if (own.refleshExecutor != null) {
+			own.refleshExecutor.shutdown();
+			try {
+				// 実行中のreflesh完了を待ってからmanagerを閉じる
+				own.refleshExecutor.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (own.importExecutor != null) {
+			own.importExecutor.shutdown();
+		}
+		if (own.reopenThread != null) {
+			own.reopenThread.close();
+		}
 		own.writer.close();
 		own.manager.close();
+		own.closeResources();
 		if (own.file != null && own.isVolatile && own.file.exists()) {
 			deleteDirectory(own.file);
 		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * write state of subclass held in memory before index is closed,
+	 * writer commits it on close. it's called by both close and shutdown hook.
+	 */
+	protected void beforeClose() {
+	}
+
+	/**
+	 * close resources of subclass after index is closed.
+	 * it's called by both close and shutdown hook, so it may be called twice.
+	 * @throws IOException IOException
+	 */
+	protected void closeResources() throws IOException {
 	}
 
 	/**
@@ -152,7 +332,15 @@ public abstract class LuceneKVSBase<K, V> implements Map<K, V> {
 	 * @throws IOException IOException
 	 */
 	public void close() throws IOException {
-		close(this);
+		try {
+			close(this);
+		} finally {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// shutdown中はhookを取り除けない
+			}
+		}
 	}
 
 	/**
@@ -161,8 +349,21 @@ public abstract class LuceneKVSBase<K, V> implements Map<K, V> {
 	 * @throws IOException IOException
 	 */
 	public void save(Directory directory) throws IOException {
-		for (String file : this.directory.listAll()) {
-			this.directory.copyFrom(directory, file, file, IOContext.DEFAULT);
+		commit();
+		copyCommit(this.directory, directory);
+	}
+
+	/**
+	 * copy files of last commit
+	 * @param from source directory
+	 * @param to destination directory
+	 * @throws IOException IOException
+	 */
+	protected static void copyCommit(Directory from, Directory to) throws IOException {
+		// 書き込み中のfileやwrite.lockはコピーしない
+		SegmentInfos infos = SegmentInfos.readLatestCommit(from);
+		for (String file : infos.files(true)) {
+			to.copyFrom(from, file, file, IOContext.DEFAULT);
 		}
 	}
 
@@ -183,6 +384,24 @@ public abstract class LuceneKVSBase<K, V> implements Map<K, V> {
 		this.isAutoCommit = isAutoCommit;
 	}
 
+	/**
+	 * set value hash indexed.
+	 * if true, hash of stored value is indexed and containsValue becomes term lookup.
+	 * values written before enabling are not indexed, so containsValue scans index until they are rewritten.
+	 * @param isValueHashIndexed if true, index hash of stored value
+	 */
+	public void setValueHashIndexed(boolean isValueHashIndexed) {
+		this.isValueHashIndexed = isValueHashIndexed;
+	}
+
+	/**
+	 * is value hash indexed
+	 * @return if true, hash of stored value is indexed
+	 */
+	public boolean isValueHashIndexed() {
+		return isValueHashIndexed;
+	}
+
 	/**
 	 * is auto commit
 	 * @return if true, auto commit in writing
@@ -208,248 +427,1715 @@ public abstract class LuceneKVSBase<K, V> implements Map<K, V> {
 	}
 
 	/**
-	 * writer commit
+	 * enable near real time search, searcher is refleshed by reopen thread.
+	 * writes become visible without commit and reading, so commit is only needed for durability.
+	 * call this before reading and writing.
+	 * @param targetMaxStaleSec max time to reopen when nobody waits for generation
+	 * @param targetMinStaleSec min time to reopen when someone waits for generation
+	 * @throws IOException IOException
 	 */
-	public void commit() {
-		try {
-			numDocs.set(writer.numDocs());
-			writer.commit();
-			// get時のblock時間を減らすため非同期でrefleshを呼び出しておくオプション
-			if(isAsyncReflesh) {
-				new Thread(new Runnable() {
-					@Override
-					public void run() {
-						try {
-							manager.maybeRefreshBlocking();
-						} catch (IOException e) {
-							throw new LuceneRuntimeException(e);
-						}
-					}
-				}).start();
-			}
-		} catch (IOException e) {
-			throw new LuceneRuntimeException(e);
+	public synchronized void enableNearRealTime(double targetMaxStaleSec, double targetMinStaleSec) throws IOException {
+		if (reopenThread != null) {
+			return;
 		}
+		this.reopenThread = new ControlledRealTimeReopenThread<IndexSearcher>(trackingWriter, manager,
+				targetMaxStaleSec, targetMinStaleSec);
+		reopenThread.setName("kvs-nrt-reopen");
+		reopenThread.setDaemon(true);
+		reopenThread.start();
 	}
 
 	/**
-	 * search document
-	 * @param key keyObject
-	 * @return null when not found
+	 * is near real time search
+	 * @return if true, searcher is refleshed by reopen thread
 	 */
-	protected Document getDocument(Object key) {
-		try {
-			manager.maybeRefreshBlocking();
-			IndexSearcher searcher = manager.acquire();
+	public boolean isNearRealTime() {
+		return reopenThread != null;
+	}
+
+	/**
+	 * enable group commit, writes are committed together by time or count instead of each writing.
+	 * durability of each writing is not guaranteed until {@link #sync()} is called.
+	 * @param intervalMillis commit interval milli seconds (0 or less: count-based only)
+	 * @param maxPendingOps max pending operations before commit (0 or less: time-based only)
+	 */
+	public synchronized void enableGroupCommit(long intervalMillis, int maxPendingOps) {
+		disableGroupCommit();
+		this.commitScheduler = new KVSCommitScheduler(this, intervalMillis, maxPendingOps);
+	}
+
+	/**
+	 * disable group commit and commit pending writes
+	 */
+	public synchronized void disableGroupCommit() {
+		if (commitScheduler != null) {
 			try {
-				TopDocs top = searcher.search(new TermQuery(keyTerm(key, KEY)), 1, Sort.INDEXORDER);
-				if(top.totalHits==0 ) { return null; }
-				int docId = top.scoreDocs[0].doc;
-				return searcher.doc(docId);
+				commitScheduler.close();
 			} finally {
-				manager.release(searcher);
-				searcher = null;
+				commitScheduler = null;
 			}
-		} catch (IOException e) {
-			throw new LuceneRuntimeException(e);
 		}
 	}
 
 	/**
-	 * create key term
-	 * @param key keyObject
-	 * @param keyFieldName key field name
-	 * @return key term
+	 * group commit scheduler
+	 * @return scheduler, null when group commit is disabled
 	 */
-	public Term keyTerm(Object key, String keyFieldName) {
-		return new Term(keyFieldName, key.toString());
+	public KVSCommitScheduler getCommitScheduler() {
+		return commitScheduler;
 	}
 
 	/**
-	 * documentからKeyを書き込むための実装 (Store.YESの実装が必要)
-	 * @param key key
-	 * @param keyFieldName key field name
-	 * @return byte array
+	 * wait until writes are committed.
+	 * when group commit is disabled, simply commit.
 	 */
-	public Field writeKey(K key, String keyFieldName) {
-		return new StringField(keyFieldName, key.toString(), Store.YES);
+	public void sync() {
+		KVSCommitScheduler scheduler = commitScheduler;
+		if (scheduler != null) {
+			scheduler.sync();
+		} else {
+			commit();
+		}
 	}
 
 	/**
-	 * documentからValueへの復元するための実装
-	 * @param doc document
-	 * @param valueFieldName value field name
-	 * @return value
-	 * @throws Exception exception
+	 * called after writing, commit or notify to group commit scheduler
+	 * @param ops operation count
 	 */
-	public abstract V readValue(Document doc, String valueFieldName) throws Exception;
+	protected void afterWrite(int ops) {
+		KVSCommitScheduler scheduler = commitScheduler;
+		if (scheduler != null) {
+			scheduler.onWrite(ops);
+		} else if (isAutoCommit) {
+			commit();
+		}
+		if (pendingWrites.size() >= maxPendingWrites) {
+			purgePendingWrites();
+		}
+	}
 
 	/**
-	 * documentにValueを書き込むための実装
-	 * @param val value
-	 * @param valueFieldName value field name
-	 * @return stored field
-	 * @throws Exception exception
+	 * reflesh searcher without commit, pending writes which searcher reflects are purged
 	 */
-	public abstract StoredField writeValue(V val, String valueFieldName) throws Exception;
+	protected void purgePendingWrites() {
+		try {
+			manager.maybeRefreshBlocking();
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
 
 	/**
-	 * create doucment
-	 * @param key key object
-	 * @param val val object
-	 * @return document
-	 * @throws Exception Exception
+	 * set max pending writes.
+	 * pending writes are held until searcher is refleshed, so searcher is refleshed when they exceed it.
+	 * @param maxPendingWrites max pending writes
 	 */
-	public Document createDocument(K key, V val) throws Exception {
-		Document doc = new Document();
-		doc.add(writeKey(key, KEY));
-		doc.add(writeValue(val, VAL));
-		return doc;
+	public void setMaxPendingWrites(int maxPendingWrites) {
+		this.maxPendingWrites = maxPendingWrites;
 	}
 
 	/**
-	 * put Key Value
+	 * max pending writes
+	 * @return max pending writes
 	 */
-	public V put(K key, V val) {
+	public int getMaxPendingWrites() {
+		return maxPendingWrites;
+	}
+
+	/**
+	 * current write generation, it's used as read-your-writes token.
+	 * call after writing and pass to {@link #get(Object, long)} or {@link #waitForGeneration(long)}
+	 * @return generation which covers all completed writes
+	 */
+	public long getGeneration() {
+		return trackingWriter.getGeneration();
+	}
+
+	/**
+	 * wait until searcher covers write generation.
+	 * searcher is opened from IndexWriter, so it's refleshed without commit.
+	 * @param generation write generation, 0 or less means last committed generation
+	 */
+	public void waitForGeneration(long generation) {
 		try {
-			Document doc = createDocument(key, val);
-			writer.updateDocument(new Term(KEY, key.toString()), doc);
-			if (isAutoCommit) {
-				this.commit();
+			if (reopenThread != null) {
+				if (generation > 0) {
+					reopenThread.waitForGeneration(generation);
+				}
+				return;
 			}
-		} catch (Exception e) {
+			long target = Math.max(generation, committedGeneration.get());
+			if (searchingGeneration.get() < target) {
+				manager.maybeRefreshBlocking();
+			}
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			throw new LuceneRuntimeException(e);
 		}
-		return val;
 	}
 
 	/**
-	 * get Value
+	 * wait until searcher covers write generation.
+	 * it doesn't wait when searcher is fresh enough or generation is not given,
+	 * own writes are read from pending writes until async reflesh catches up.
+	 * @param generation write generation, 0 or less means current searcher
+	 * @return write generation which current searcher covers at least
 	 */
-	public V get(Object key) {
-		Document doc = getDocument(key);
-		if (doc == null) {
-			return null;
-		} else {
-			try {
-				return readValue(doc, VAL);
-			} catch (Exception e) {
-				throw new LuceneRuntimeException(e);
-			}
+	protected long awaitSearcher(long generation) {
+		if (generation > 0 && (reopenThread != null || searchingGeneration.get() < generation)) {
+			waitForGeneration(generation);
 		}
+		return searchingGeneration.get();
 	}
 
-	@Override
-	public int size() {
-		return numDocs.get();
+	/**
+	 * acquire searcher which covers write generation.
+	 * searcher is acquired without lock when it's fresh enough.
+	 * @param generation write generation, 0 or less means current searcher
+	 * @return searcher, must be released by manager
+	 * @throws IOException IOException
+	 */
+	protected IndexSearcher acquireSearcher(long generation) throws IOException {
+		awaitSearcher(generation);
+		return manager.acquire();
 	}
 
-	@Override
-	public boolean isEmpty() {
-		return numDocs.get() <= 0;
+	/**
+	 * enable value cache, large cache is split into segments by key hash
+	 * @param maxEntries max entries, 0 or less means unlimited
+	 * @param maxBytes max stored bytes of values, 0 or less means unlimited
+	 */
+	public void enableCache(int maxEntries, long maxBytes) {
+		this.valueCache = new KVSValueCache<V>(maxEntries, maxBytes);
 	}
 
-	@Override
-	public boolean containsKey(Object key) {
-		return getDocument(key.toString()) != null;
+	/**
+	 * disable value cache
+	 */
+	public void disableCache() {
+		this.valueCache = null;
 	}
 
-	@Override
-	public boolean containsValue(Object value) {
-		LuceneKVSIterator<K, V> ite = iterator();
-		while(ite.hasNext()) {
-			if (ite.next().getValue().equals(value) ) {
-				return true;
-			}
-		}
-		return false;
+	/**
+	 * value cache, it's used for hit/miss statistics
+	 * @return value cache, null when cache is disabled
+	 */
+	public KVSValueCache<V> getCache() {
+		return valueCache;
 	}
 
-	@Override
-	public V remove(Object key) {
-		V val = null;
+	/**
+	 * enable Bloom filter of keys, misses of get and containsKey are answered without term lookup.
+	 * filter is built from all keys in index, and writes add keys to filter.
+	 * deleted keys remain in filter, so re-enable when filter is saturated.
+	 * put of new key also skips term lookup for size counting.
+	 * @param expectedKeys expected key count
+	 * @param fpp false positive probability
+	 */
+	public void enableBloomFilter(long expectedKeys, double fpp) {
+		KVSBloomFilter filter = new KVSBloomFilter(expectedKeys, fpp);
+		this.isBloomFilterReady = false;
+		// 以降の書き込みはfilterに追加される
+		this.bloomFilter = filter;
 		try {
-			val = get(key);
-			if (val != null) {
-				writer.deleteDocuments(new Term(KEY, key.toString()));
-				if (isAutoCommit) {
-					this.commit();
+			// commitせずにwriterから開く、削除済みのkeyは残ってもよい
+			DirectoryReader reader = DirectoryReader.open(writer, false);
+			try {
+				for (LeafReaderContext context : reader.leaves()) {
+					Terms terms = context.reader().terms(KEY);
+					if (terms == null) {
+						continue;
+					}
+					TermsEnum termsEnum = terms.iterator();
+					BytesRef term;
+					while ((term = termsEnum.next()) != null) {
+						filter.add(term);
+					}
 				}
+			} finally {
+				reader.close();
 			}
 		} catch (IOException e) {
 			throw new LuceneRuntimeException(e);
 		}
-		return val;
+		this.isBloomFilterReady = true;
 	}
 
-	@Override
-	public void putAll(Map<? extends K, ? extends V> m) {
-		try {
-			for(Entry<? extends K, ? extends V> entry: m.entrySet()) {
-				K key = entry.getKey();
-				Document doc = createDocument(key, entry.getValue());
-				writer.updateDocument(new Term(KEY, key.toString()), doc);
-			}
-			if (isAutoCommit) {
-				this.commit();
-			}
-		} catch (Exception e) {
-			throw new LuceneRuntimeException(e);
-		}
+	/**
+	 * disable Bloom filter
+	 */
+	public void disableBloomFilter() {
+		this.isBloomFilterReady = false;
+		this.bloomFilter = null;
 	}
 
-	@Override
-	public void clear() {
-		try {
-			writer.deleteAll();
-			if (isAutoCommit) {
-				this.commit();
-			}
-		} catch (IOException e) {
-			throw new LuceneRuntimeException(e);
+	/**
+	 * Bloom filter of keys
+	 * @return Bloom filter, null when filter is disabled
+	 */
+	public KVSBloomFilter getBloomFilter() {
+		return bloomFilter;
+	}
+
+	/**
+	 * test key by Bloom filter
+	 * @param term key term bytes
+	 * @return if false, key definitely doesn't exist
+	 */
+	protected boolean mightContain(BytesRef term) {
+		KVSBloomFilter filter = bloomFilter;
+		return !isBloomFilterReady || filter == null || filter.mightContain(term);
+	}
+
+	/**
+	 * add key to Bloom filter before writing
+	 * @param term key term
+	 */
+	protected void addBloomFilter(Term term) {
+		KVSBloomFilter filter = bloomFilter;
+		if (filter != null) {
+			filter.add(term.bytes());
 		}
 	}
 
-	@Override
-	public Set<K> keySet() {
-		LuceneKVSIterator<K, V> ite = iterator();
-		Set<K> set = new LinkedHashSet<K>(ite.size());
-		while (ite.hasNext()) {
-			set.add(ite.next().getKey());
+	/**
+	 * invalidate cached value after writing
+	 * @param term key term
+	 * @param generation write generation
+	 */
+	protected void invalidate(Term term, long generation) {
+		KVSValueCache<V> cache = valueCache;
+		if (cache != null) {
+			cache.invalidate(term.bytes(), generation);
 		}
-		return set;
 	}
 
-	@Override
-	public Collection<V> values() {
-		LuceneKVSIterator<K, V> ite = iterator();
-		ArrayList<V> set = new ArrayList<>(ite.size());
-		while(ite.hasNext()) {
-			set.add(ite.next().getValue());
+	/**
+	 * invalidate all cached values after clear
+	 * @param generation write generation
+	 */
+	protected void invalidateAll(long generation) {
+		KVSValueCache<V> cache = valueCache;
+		if (cache != null) {
+			cache.invalidateAll(generation);
 		}
-		return set;
 	}
 
-	@Override
-	public Set<Entry<K, V>> entrySet() {
-		LuceneKVSIterator<K, V> ite = iterator();
-		Set<Entry<K, V>> set = new LinkedHashSet<Entry<K, V>>(ite.size());
-		while (ite.hasNext()) {
-			set.add(ite.next());
+	/**
+	 * stored bytes of value, it's used for cache budget
+	 * @param doc document
+	 * @return bytes
+	 */
+	protected int storedBytes(Document doc) {
+		IndexableField field = doc.getField(VAL);
+		if (field == null) {
+			return 0;
+		}
+		BytesRef bytes = field.binaryValue();
+		if (bytes != null) {
+			return bytes.length;
 		}
-		return set;
+		String str = field.stringValue();
+		return str != null ? str.length() : 8;
 	}
 
 	/**
-	 * create iterator
-	 * @return iterator
+	 * record write generation which searcher covers
 	 */
-	public LuceneKVSIterator<K,V> iterator() {
-		try {
-			return new LuceneKVSIterator<K, V>(manager, this);
-		} catch (IOException e) {
-			throw new LuceneRuntimeException(e);
+	protected class GenerationListener implements RefreshListener {
+
+		/** generation before reflesh */
+		private long refreshingGeneration;
+
+		@Override
+		public void beforeRefresh() throws IOException {
+			// write batchの適用中はrefleshしない
+			refleshLock.lock();
+			// searcherはwriterから開くため、reflesh前に完了した書き込みが全て見える
+			refreshingGeneration = trackingWriter.getAndIncrementGeneration();
 		}
+
+		@Override
+		public void afterRefresh(boolean didRefresh) throws IOException {
+			try {
+				// searchingGeneration更新前にpurgeし、待機側からは反映済みに見えるようにする
+				pendingWrites.purge(refreshingGeneration);
+				updateMax(searchingGeneration, refreshingGeneration);
+			} finally {
+				refleshLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * update atomic value to max value
+	 * @param value atomic value
+	 * @param newValue new value
+	 */
+	private static void updateMax(AtomicLong value, long newValue) {
+		long current;
+		while ((current = value.get()) < newValue) {
+			if (value.compareAndSet(current, newValue)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * writer commit
+	 */
+	public void commit() {
+		try {
+			synchronized (commitLock) {
+				// commit前に完了した書き込みのgenerationを記録
+				long generation = trackingWriter.getAndIncrementGeneration();
+				writer.commit();
+				updateMax(committedGeneration, generation);
+			}
+			// get時のblock時間を減らすため非同期でrefleshを呼び出しておくオプション
+			// NRTの場合はreopenThreadがrefleshするため不要
+			if(isAsyncReflesh && reopenThread == null) {
+				asyncReflesh();
+			}
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * reflesh searcher on reflesh thread, skip if reflesh is already queued
+	 */
+	protected void asyncReflesh() {
+		if (!isRefleshQueued.compareAndSet(false, true)) {
+			return;
+		}
+		synchronized (this) {
+			if (refleshExecutor == null) {
+				refleshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "kvs-reflesh");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+		}
+		refleshExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				isRefleshQueued.set(false);
+				try {
+					manager.maybeRefreshBlocking();
+				} catch (IOException e) {
+					throw new LuceneRuntimeException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * search document
+	 * @param key keyObject
+	 * @return null when not found
+	 */
+	protected Document getDocument(Object key) {
+		return getDocument(key, 0);
+	}
+
+	/**
+	 * search document
+	 * @param key keyObject
+	 * @param generation write generation to be visible, 0 or less means current searcher
+	 * @return null when not found
+	 */
+	protected Document getDocument(Object key, long generation) {
+		return getDocument(keyTerm(key, KEY).bytes(), generation);
+	}
+
+	/**
+	 * search document by key term
+	 * @param term key term bytes
+	 * @param generation write generation to be visible, 0 or less means current searcher
+	 * @return null when not found
+	 */
+	protected Document getDocument(BytesRef term, long generation) {
+		// Bloom filterで存在しないkeyはsearcherを取得せずに返す
+		if (!mightContain(term)) { return null; }
+		try {
+			IndexSearcher searcher = acquireSearcher(generation);
+			try {
+				int docId = keyLookup.lookup(searcher.getIndexReader(), term);
+				if (docId < 0) { return null; }
+				return searcher.doc(docId);
+			} finally {
+				manager.release(searcher);
+				searcher = null;
+			}
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * exists document, without loading stored fields
+	 * @param key keyObject
+	 * @param generation write generation to be visible, 0 or less means current searcher
+	 * @return if true, document exists
+	 */
+	protected boolean hasDocument(Object key, long generation) {
+		BytesRef term = keyTerm(key, KEY).bytes();
+		if (!mightContain(term)) { return false; }
+		try {
+			IndexSearcher searcher = acquireSearcher(generation);
+			try {
+				return keyLookup.lookup(searcher.getIndexReader(), term) >= 0;
+			} finally {
+				manager.release(searcher);
+				searcher = null;
+			}
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * create key term
+	 * @param key keyObject
+	 * @param keyFieldName key field name
+	 * @return key term
+	 */
+	public Term keyTerm(Object key, String keyFieldName) {
+		return new Term(keyFieldName, key.toString());
+	}
+
+	/**
+	 * restore key from key term, inverse of {@link #keyTerm(Object, String)}
+	 * @param term key term bytes
+	 * @return keyObject
+	 */
+	@SuppressWarnings("unchecked")
+	public K keyOf(BytesRef term) {
+		return (K) term.utf8ToString();
+	}
+
+	/**
+	 * documentからKeyを復元するための実装
+	 * @param doc document
+	 * @param keyFieldName key field name
+	 * @return keyObject
+	 */
+	@SuppressWarnings("unchecked")
+	public K readKey(Document doc, String keyFieldName) {
+		return (K) doc.get(keyFieldName);
+	}
+
+	/**
+	 * documentからKeyを書き込むための実装 (Store.YESの実装が必要)
+	 * @param key key
+	 * @param keyFieldName key field name
+	 * @return byte array
+	 */
+	public Field writeKey(K key, String keyFieldName) {
+		return new StringField(keyFieldName, key.toString(), Store.YES);
+	}
+
+	/**
+	 * documentからValueへの復元するための実装
+	 * @param doc document
+	 * @param valueFieldName value field name
+	 * @return value
+	 * @throws Exception exception
+	 */
+	public abstract V readValue(Document doc, String valueFieldName) throws Exception;
+
+	/**
+	 * documentにValueを書き込むための実装
+	 * @param val value
+	 * @param valueFieldName value field name
+	 * @return stored field
+	 * @throws Exception exception
+	 */
+	public abstract StoredField writeValue(V val, String valueFieldName) throws Exception;
+
+	/**
+	 * create doucment
+	 * @param key key object
+	 * @param val val object
+	 * @return document
+	 * @throws Exception Exception
+	 */
+	public Document createDocument(K key, V val) throws Exception {
+		return createDocument(writeKey(key, KEY), val);
+	}
+
+	/**
+	 * create doucment
+	 * @param keyField key field created by {@link #writeKey(Object, String)}
+	 * @param val val object
+	 * @return document
+	 * @throws Exception Exception
+	 */
+	protected Document createDocument(Field keyField, V val) throws Exception {
+		Document doc = new Document();
+		doc.add(keyField);
+		StoredField value = writeValue(val, VAL);
+		doc.add(value);
+		if (isValueHashIndexed) {
+			doc.add(new StringField(VAL_HASH, valueHash(value), Store.NO));
+		}
+		return doc;
+	}
+
+	/**
+	 * 64bit hash of stored value
+	 * @param value stored value field
+	 * @return hash bytes
+	 */
+	protected BytesRef valueHash(StoredField value) {
+		BytesRef bytes = value.binaryValue();
+		if (bytes == null) {
+			String str = value.stringValue();
+			bytes = new BytesRef(str != null ? str : String.valueOf(value.numericValue()));
+		}
+		int h1 = StringHelper.murmurhash3_x86_32(bytes, 0x9747b28c);
+		int h2 = StringHelper.murmurhash3_x86_32(bytes, 0x5bd1e995);
+		byte[] hash = new byte[8];
+		for (int i = 0; i < 4; i++) {
+			hash[i] = (byte) (h1 >>> (24 - i * 8));
+			hash[i + 4] = (byte) (h2 >>> (24 - i * 8));
+		}
+		return new BytesRef(hash);
+	}
+
+	/**
+	 * put Key Value.
+	 * to keep size exact, key which has no pending write is looked up in current searcher,
+	 * it costs one term lookup per put unless Bloom filter rejects new key.
+	 */
+	public V put(K key, V val) {
+		Term term = keyTerm(key, KEY);
+		ReentrantLock lock = keyLocks.get(term.bytes());
+		lock.lock();
+		try {
+			write(term, key, val);
+		} finally {
+			lock.unlock();
+		}
+		afterWrite(1);
+		return val;
+	}
+
+	/**
+	 * update document and record pending write, caller must hold key lock
+	 * @param term key term
+	 * @param key key
+	 * @param val value
+	 */
+	protected void write(Term term, K key, V val) {
+		try {
+			write(term, createDocument(key, val), val);
+		} catch (LuceneRuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * update document and record pending write, caller must hold key lock
+	 * @param term key term
+	 * @param doc document
+	 * @param val value
+	 */
+	protected void write(Term term, Document doc, V val) {
+		try {
+			addBloomFilter(term);
+			boolean isInserted = !exists(term.bytes());
+			long generation = trackingWriter.updateDocument(term, doc);
+			if (isInserted) {
+				addNumDocs(1);
+			}
+			invalidate(term, generation);
+			IndexableField field = doc.getField(VAL);
+			// encode済みのbytesを保持し、getBytesで再encodeしない
+			writes().put(term.bytes(), val, field != null ? field.binaryValue() : null, generation);
+		} catch (Exception e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * delete document and record pending write, caller must hold key lock
+	 * @param term key term
+	 */
+	protected void erase(Term term) {
+		try {
+			boolean isDeleted = exists(term.bytes());
+			long generation = trackingWriter.deleteDocuments(term);
+			if (isDeleted) {
+				addNumDocs(-1);
+			}
+			invalidate(term, generation);
+			writes().delete(term.bytes(), generation);
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * pending writes which record write, writes of batch are staged until the last write
+	 * @return pending writes
+	 */
+	private KVSPendingWrites<V> writes() {
+		KVSPendingWrites<V> staged = stagedWrites;
+		return staged != null ? staged : pendingWrites;
+	}
+
+	/**
+	 * add document count, delta of batch is staged until the last write
+	 * @param delta delta
+	 */
+	private void addNumDocs(int delta) {
+		if (stagedWrites != null) {
+			stagedDocs += delta;
+		} else {
+			numDocs.addAndGet(delta);
+		}
+	}
+
+	/**
+	 * test staged write or prefix clear of key
+	 * @param staged staged writes
+	 * @param term key term bytes
+	 * @return if true, key is written by batch
+	 */
+	private static boolean isStaged(KVSPendingWrites<?> staged, BytesRef term) {
+		return staged.get(term) != null || staged.isClearedAfter(term, 0);
+	}
+
+	/**
+	 * test key existence for size counting, it doesn't wait for searcher.
+	 * pending writes and current searcher cover all writes, caller must hold key lock.
+	 * pending write and Bloom filter answer without searcher, otherwise key term is looked up,
+	 * which makes put of key not written recently about 1.3-1.5 times slower than put without counting.
+	 * @param term key term bytes
+	 * @return if true, key exists
+	 * @throws IOException IOException
+	 */
+	protected boolean exists(BytesRef term) throws IOException {
+		KVSPendingWrites<V> staged = stagedWrites;
+		if (staged != null && isStaged(staged, term)) {
+			PendingWrite<V> write = staged.get(term);
+			return write != null && !write.isDeleted;
+		}
+		PendingWrite<V> pending = pendingWrites.get(term);
+		if (pending != null) {
+			return !pending.isDeleted;
+		}
+		if (pendingWrites.isClearedAfter(term, searchingGeneration.get()) || !mightContain(term)) {
+			return false;
+		}
+		// searcherは反映済みの書き込みのpending writeがpurgeされる前に切り替わる
+		IndexSearcher searcher = manager.acquire();
+		try {
+			return keyLookup.lookup(searcher.getIndexReader(), term) >= 0;
+		} finally {
+			manager.release(searcher);
+			searcher = null;
+		}
+	}
+
+	/**
+	 * get Value
+	 */
+	public V get(Object key) {
+		return get(key, 0);
+	}
+
+	/**
+	 * get Value which reflects writes until generation
+	 * @param key key
+	 * @param generation write generation returned by {@link #getGeneration()}
+	 * @return value, null when not found
+	 */
+	public V get(Object key, long generation) {
+		return getByTerm(keyTerm(key, KEY).bytes(), generation);
+	}
+
+	/**
+	 * get Value by key term
+	 * @param term key term bytes
+	 * @param generation write generation returned by {@link #getGeneration()}
+	 * @return value, null when not found
+	 */
+	protected V getByTerm(BytesRef term, long generation) {
+		PendingWrite<V> pending = pendingWrites.get(term);
+		if (pending != null) {
+			return pendingValue(term, pending);
+		}
+		if (pendingWrites.isClearedAfter(term, searchingGeneration.get())) {
+			return null;
+		}
+		return load(term, generation);
+	}
+
+	/**
+	 * value of write which searcher doesn't reflect yet.
+	 * binary value is decoded from stored bytes, so get returns a copy
+	 * as it does after reflesh, not the object given to put.
+	 * @param term key term bytes
+	 * @param pending pending write which is not deleted
+	 * @return value
+	 */
+	protected V pendingValue(BytesRef term, PendingWrite<V> pending) {
+		if (!pending.hasValue) {
+			// 値を保持しない書き込みは反映を待って読む
+			return load(term, pending.generation);
+		} else if (pending.bytes == null) {
+			return pending.value;
+		}
+		try {
+			Document doc = new Document();
+			doc.add(new StoredField(VAL, pending.bytes));
+			return readValue(doc, VAL);
+		} catch (LuceneRuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * load Value from cache or index
+	 * @param term key term bytes
+	 * @param generation write generation returned by {@link #getGeneration()}
+	 * @return value, null when not found
+	 */
+	protected V load(BytesRef term, long generation) {
+		KVSValueCache<V> cache = valueCache;
+		long searcherGeneration = 0;
+		if (cache != null) {
+			V val = cache.get(term);
+			if (val != null) {
+				return val;
+			}
+			searcherGeneration = awaitSearcher(generation);
+		}
+		Document doc = getDocument(term, generation);
+		if (doc == null) {
+			return null;
+		} else {
+			try {
+				V val = readValue(doc, VAL);
+				if (cache != null) {
+					cache.put(term, val, storedBytes(doc), searcherGeneration);
+				}
+				return val;
+			} catch (Exception e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * get many Values with one searcher.
+	 * keys are looked up in term order and documents are loaded in docId order.
+	 * @param keys keys
+	 * @return found key and value map, not found keys are not contained
+	 */
+	public Map<K, V> getAll(Collection<? extends K> keys) {
+		@SuppressWarnings("unchecked")
+		final K[] keyArray = (K[]) keys.toArray();
+		final BytesRef[] terms = new BytesRef[keyArray.length];
+		Integer[] order = new Integer[keyArray.length];
+		for (int i = 0; i < keyArray.length; i++) {
+			terms[i] = keyTerm(keyArray[i], KEY).bytes();
+			order[i] = i;
+		}
+		// TermsEnumを前方にseekできるようにterm順に並べる
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return terms[o1].compareTo(terms[o2]);
+			}
+		});
+		List<PendingWrite<V>> pendings = new ArrayList<PendingWrite<V>>(keyArray.length);
+		long searcherGeneration = searchingGeneration.get();
+		BytesRef[] sortedTerms = new BytesRef[order.length];
+		long generation = 0;
+		for (int i = 0; i < keyArray.length; i++) {
+			PendingWrite<V> pending = pendingWrites.get(terms[i]);
+			if (pending != null && !pending.hasValue) {
+				// 値を保持しない書き込みは反映済みのsearcherから読む
+				generation = Math.max(generation, pending.generation);
+				pending = null;
+			}
+			pendings.add(pending);
+		}
+		// clear後の書き込みを待つsearcherはclearも反映している
+		searcherGeneration = Math.max(searcherGeneration, generation);
+		for (int i = 0; i < order.length; i++) {
+			BytesRef term = terms[order[i]];
+			// searcherに反映前の書き込みは検索しない
+			boolean isSearched = pendings.get(order[i]) == null && !pendingWrites.isClearedAfter(term, searcherGeneration);
+			sortedTerms[i] = isSearched && mightContain(term) ? term : null;
+		}
+		try {
+			IndexSearcher searcher = acquireSearcher(generation);
+			try {
+				final int[] docIds = keyLookup.lookupAll(searcher.getIndexReader(), sortedTerms);
+				Integer[] docOrder = new Integer[docIds.length];
+				for (int i = 0; i < docIds.length; i++) {
+					docOrder[i] = i;
+				}
+				// I/Oの局所性のためdocId順に読み込む
+				Arrays.sort(docOrder, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer o1, Integer o2) {
+						return Integer.compare(docIds[o1], docIds[o2]);
+					}
+				});
+				Object[] values = new Object[keyArray.length];
+				boolean[] found = new boolean[keyArray.length];
+				for (Integer i : docOrder) {
+					if (docIds[i] < 0) {
+						continue;
+					}
+					values[order[i]] = readValue(searcher.doc(docIds[i]), VAL);
+					found[order[i]] = true;
+				}
+				Map<K, V> result = new LinkedHashMap<K, V>(keyArray.length * 2);
+				for (int i = 0; i < keyArray.length; i++) {
+					PendingWrite<V> pending = pendings.get(i);
+					if (pending != null) {
+						if (!pending.isDeleted) {
+							result.put(keyArray[i], pendingValue(terms[i], pending));
+						}
+					} else if (found[i]) {
+						@SuppressWarnings("unchecked")
+						V val = (V) values[i];
+						result.put(keyArray[i], val);
+					}
+				}
+				return result;
+			} finally {
+				manager.release(searcher);
+				searcher = null;
+			}
+		} catch (Exception e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	@Override
+	public int size() {
+		return numDocs.get();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return numDocs.get() <= 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		BytesRef term = keyTerm(key, KEY).bytes();
+		PendingWrite<V> pending = pendingWrites.get(term);
+		if (pending != null) {
+			return !pending.isDeleted;
+		}
+		if (pendingWrites.isClearedAfter(term, searchingGeneration.get())) {
+			return false;
+		}
+		return hasDocument(key, 0);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		if (isValueHashIndexed && value != null) {
+			Boolean contains = containsValueByHash(value);
+			if (contains != null) {
+				return contains;
+			}
+		}
+		LuceneKVSIterator<K, V> ite = iterator();
+		try {
+			while(ite.hasNext()) {
+				if (ite.next().getValue().equals(value) ) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			try {
+				ite.close();
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * containsValue by value hash term, candidates are verified by equals.
+	 * writes which searcher doesn't reflect yet are checked first,
+	 * and it's retried when they are purged while searcher is read.
+	 * @param value value
+	 * @return null when some documents have no value hash
+	 */
+	protected Boolean containsValueByHash(Object value) {
+		try {
+			@SuppressWarnings("unchecked")
+			BytesRef hash = valueHash(writeValue((V) value, VAL));
+			Boolean contains;
+			long sequence;
+			// 読み込み中にpending writeがpurgeされた場合は古いsearcherを読んだ可能性があるため再試行する
+			do {
+				sequence = pendingWrites.getPurgeSequence();
+				contains = containsValueByHash(value, hash);
+			} while (sequence != pendingWrites.getPurgeSequence());
+			return contains;
+		} catch (ClassCastException e) {
+			return false;
+		} catch (Exception e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * containsValue by value hash term with pending writes and current searcher
+	 * @param value value
+	 * @param hash value hash term
+	 * @return null when some documents have no value hash
+	 * @throws Exception Exception
+	 */
+	private Boolean containsValueByHash(Object value, BytesRef hash) throws Exception {
+		long searcherGeneration = searchingGeneration.get();
+		for (Entry<BytesRef, PendingWrite<V>> entry : pendingWrites.entries().entrySet()) {
+			if (!entry.getValue().isDeleted && value.equals(getByTerm(entry.getKey(), 0))) {
+				return true;
+			}
+		}
+		IndexSearcher searcher = acquireSearcher(0);
+		try {
+			IndexReader reader = searcher.getIndexReader();
+			for (LeafReaderContext context : reader.leaves()) {
+				Terms terms = context.reader().terms(VAL_HASH);
+				// hash無しで書き込まれたdocumentがある場合は全件走査する
+				if (terms == null ? context.reader().maxDoc() > 0 : terms.getDocCount() < context.reader().maxDoc()) {
+					return null;
+				}
+			}
+			for (int docId : valueHashLookup.lookupDocs(reader, hash)) {
+				Document doc = searcher.doc(docId);
+				// 上書き、削除されたdocumentは書き込み待ちの値で確認済み
+				BytesRef term = keyTerm(readKey(doc, KEY), KEY).bytes();
+				if (pendingWrites.get(term) != null || pendingWrites.isClearedAfter(term, searcherGeneration)) {
+					continue;
+				}
+				if (value.equals(readValue(doc, VAL))) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			manager.release(searcher);
+			searcher = null;
+		}
+	}
+
+	@Override
+	public V remove(Object key) {
+		Term term = keyTerm(key, KEY);
+		ReentrantLock lock = keyLocks.get(term.bytes());
+		V val;
+		lock.lock();
+		try {
+			val = get(key);
+			if (val != null) {
+				erase(term);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (val != null) {
+			afterWrite(1);
+		}
+		return val;
+	}
+
+	/**
+	 * delete Key without reading old value
+	 * @param key key
+	 */
+	public void delete(Object key) {
+		Term term = keyTerm(key, KEY);
+		ReentrantLock lock = keyLocks.get(term.bytes());
+		lock.lock();
+		try {
+			erase(term);
+		} finally {
+			lock.unlock();
+		}
+		afterWrite(1);
+	}
+
+	/**
+	 * delete Keys by one delete request, old values are not read
+	 * @param keys keys
+	 * @throws IllegalStateException when it's called in compute or merge function
+	 */
+	public void removeAll(Collection<?> keys) {
+		if (keys.isEmpty()) {
+			return;
+		}
+		Term[] terms = new Term[keys.size()];
+		int i = 0;
+		for (Object key : keys) {
+			terms[i++] = keyTerm(key, KEY);
+		}
+		keyLocks.lockAll();
+		try {
+			erase(terms);
+		} finally {
+			keyLocks.unlockAll();
+		}
+		afterWrite(terms.length);
+	}
+
+	/**
+	 * delete documents by one delete request and record pending writes, caller must hold all key locks
+	 * @param terms key terms
+	 */
+	protected void erase(Term[] terms) {
+		try {
+			Set<BytesRef> deleted = new HashSet<BytesRef>();
+			for (Term term : terms) {
+				if (exists(term.bytes())) {
+					deleted.add(term.bytes());
+				}
+			}
+			long generation = trackingWriter.deleteDocuments(terms);
+			numDocs.addAndGet(-deleted.size());
+			for (Term term : terms) {
+				invalidate(term, generation);
+				pendingWrites.delete(term.bytes(), generation);
+			}
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		for(Entry<? extends K, ? extends V> entry: m.entrySet()) {
+			K key = entry.getKey();
+			Term term = keyTerm(key, KEY);
+			ReentrantLock lock = keyLocks.get(term.bytes());
+			lock.lock();
+			try {
+				write(term, key, entry.getValue());
+			} finally {
+				lock.unlock();
+			}
+		}
+		afterWrite(m.size());
+	}
+
+	/**
+	 * import entries by worker threads with one commit, documents are created and serialized on workers.
+	 * worker threads are reused by each import.
+	 * @param entries entries
+	 * @param isUniqueKeys if true, caller promises keys are unique and absent, documents are added without delete-by-term
+	 * @param threads worker threads, 0 or less means available processors
+	 * @return imported entry count
+	 * @see #bulkImport(Iterator, boolean, Executor, int)
+	 */
+	public long bulkImport(Iterator<? extends Entry<? extends K, ? extends V>> entries, boolean isUniqueKeys, int threads) {
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		synchronized (this) {
+			if (importExecutor == null) {
+				importExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "kvs-import");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+		}
+		return bulkImport(entries, isUniqueKeys, importExecutor, threads);
+	}
+
+	/**
+	 * import entries on executor with one commit, documents are created and serialized on executor threads.
+	 * each entry is written under its key lock, so other writes are not blocked during import.
+	 * imported entries are visible and size is updated when this method returns.
+	 * when import fails, entries imported before failure remain and are committed,
+	 * so import can be retried with isUniqueKeys false.
+	 * @param entries entries
+	 * @param isUniqueKeys if true, caller promises keys are unique and absent, documents are added without delete-by-term
+	 * @param executor executor of import tasks, it's not shut down
+	 * @param parallelism max chunks which are imported at the same time
+	 * @return imported entry count
+	 */
+	public long bulkImport(Iterator<? extends Entry<? extends K, ? extends V>> entries, final boolean isUniqueKeys, Executor executor, int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+		// 読み込み済みで未処理のchunkを制限する
+		final Semaphore inFlight = new Semaphore(parallelism);
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		final AtomicLong count = new AtomicLong();
+		try {
+			while (entries.hasNext() && error.get() == null) {
+				final List<Entry<? extends K, ? extends V>> chunk = new ArrayList<Entry<? extends K, ? extends V>>(IMPORT_CHUNK_SIZE);
+				while (chunk.size() < IMPORT_CHUNK_SIZE && entries.hasNext()) {
+					chunk.add(entries.next());
+				}
+				inFlight.acquire();
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								if (error.get() == null) {
+									importChunk(chunk, isUniqueKeys);
+									count.addAndGet(chunk.size());
+								}
+							} catch (Exception e) {
+								error.compareAndSet(null, e);
+							} finally {
+								inFlight.release();
+							}
+						}
+					});
+				} catch (RuntimeException e) {
+					inFlight.release();
+					throw e;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			error.compareAndSet(null, e);
+		} catch (RuntimeException e) {
+			error.compareAndSet(null, e);
+		} finally {
+			// 実行中のchunkの完了を待つ
+			inFlight.acquireUninterruptibly(parallelism);
+		}
+		// 失敗しても書き込み済みのchunkはwriterに残るため、commitして件数を合わせる
+		keyLocks.lockAll();
+		try {
+			commit();
+			// commitでbuffered deleteが適用されるためwriterの件数が正確になる
+			numDocs.set(writer.numDocs());
+		} finally {
+			keyLocks.unlockAll();
+		}
+		if (error.get() != null) {
+			throw new LuceneRuntimeException(error.get());
+		}
+		waitForGeneration(getGeneration());
+		return count.get();
+	}
+
+	/**
+	 * import entries by worker threads with one commit
+	 * @param entries entries
+	 * @param isUniqueKeys if true, caller promises keys are unique and absent, documents are added without delete-by-term
+	 * @param threads worker threads, 0 or less means available processors
+	 * @return imported entry count
+	 */
+	public long bulkImport(Stream<? extends Entry<? extends K, ? extends V>> entries, boolean isUniqueKeys, int threads) {
+		return bulkImport(entries.iterator(), isUniqueKeys, threads);
+	}
+
+	/**
+	 * add documents of entries on import worker, documents are created without key lock
+	 * @param chunk entries
+	 * @param isUniqueKeys if true, documents are added without delete-by-term
+	 * @throws Exception Exception
+	 */
+	protected void importChunk(List<Entry<? extends K, ? extends V>> chunk, boolean isUniqueKeys) throws Exception {
+		for (Entry<? extends K, ? extends V> entry : chunk) {
+			Term term = keyTerm(entry.getKey(), KEY);
+			Document doc = createDocument(entry.getKey(), entry.getValue());
+			ReentrantLock lock = keyLocks.get(term.bytes());
+			lock.lock();
+			try {
+				importEntry(term, doc, isUniqueKeys);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * add document of imported entry, size is not updated until import is finished.
+	 * caller must hold key lock
+	 * @param term key term
+	 * @param doc document
+	 * @param isUniqueKeys if true, document is added without delete-by-term
+	 * @throws IOException IOException
+	 */
+	protected void importEntry(Term term, Document doc, boolean isUniqueKeys) throws IOException {
+		addBloomFilter(term);
+		long generation = isUniqueKeys ? trackingWriter.addDocument(doc) : trackingWriter.updateDocument(term, doc);
+		invalidate(term, generation);
+		if (pendingWrites.get(term.bytes()) != null) {
+			// 古いpending writeより取り込んだ値を優先する
+			pendingWrites.touch(term.bytes(), generation);
+		}
+	}
+
+	/**
+	 * apply write batch under all key locks, writes are committed together.
+	 * documents are created before any write, so batch whose value can't be encoded writes nothing.
+	 * writes are recorded to pending writes after the last write and searcher isn't refleshed while batch is applied,
+	 * so {@link #get(Object)} and {@link #size()} don't reflect a part of batch.
+	 * if writer fails after a part of batch is written, writer is rolled back to last commit and closed.
+	 * @param batch write batch
+	 * @return write generation which covers batch, it can be passed to {@link #waitForGeneration(long)}
+	 * @throws IllegalStateException when it's called in compute or merge function
+	 */
+	public long write(LuceneKVSWriteBatch<K, V> batch) {
+		if (batch.size() == 0) {
+			return getGeneration();
+		}
+		List<LuceneKVSWriteBatch.Operation<K, V>> ops = batch.getOperations();
+		Term[] terms = new Term[ops.size()];
+		Document[] docs = new Document[ops.size()];
+		// 失敗し得るencodeはlock前に済ませる
+		try {
+			for (int i = 0; i < terms.length; i++) {
+				LuceneKVSWriteBatch.Operation<K, V> op = ops.get(i);
+				switch (op.type) {
+				case PUT:
+					@SuppressWarnings("unchecked")
+					K key = (K) op.key;
+					terms[i] = keyTerm(key, KEY);
+					docs[i] = createDocument(key, op.value);
+					break;
+				case DELETE:
+					terms[i] = keyTerm(op.key, KEY);
+					break;
+				case DELETE_PREFIX:
+					terms[i] = new Term(KEY, op.key.toString());
+					break;
+				}
+			}
+		} catch (LuceneRuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new LuceneRuntimeException(e);
+		}
+		long generation;
+		keyLocks.lockAll();
+		try {
+			// 途中でcommitされないようにする
+			synchronized (commitLock) {
+				refleshLock.lock();
+				try {
+					generation = write(ops, terms, docs);
+				} finally {
+					refleshLock.unlock();
+				}
+			}
+		} finally {
+			keyLocks.unlockAll();
+		}
+		afterWrite(batch.size());
+		return generation;
+	}
+
+	/**
+	 * write prepared operations of batch and record pending writes after the last write,
+	 * caller must hold all key locks, commit lock and reflesh lock
+	 * @param ops operations
+	 * @param terms key term or prefix of operations
+	 * @param docs documents of put operations
+	 * @return write generation which covers batch
+	 */
+	private long write(List<LuceneKVSWriteBatch.Operation<K, V>> ops, Term[] terms, Document[] docs) {
+		KVSPendingWrites<V> staged = new KVSPendingWrites<V>();
+		stagedWrites = staged;
+		stagedDocs = 0;
+		int i = 0;
+		try {
+			for (; i < terms.length; i++) {
+				switch (ops.get(i).type) {
+				case PUT:
+					write(terms[i], docs[i], ops.get(i).value);
+					break;
+				case DELETE:
+					erase(terms[i]);
+					break;
+				case DELETE_PREFIX:
+					erasePrefix(terms[i]);
+					break;
+				}
+			}
+		} catch (RuntimeException e) {
+			stagedWrites = null;
+			if (i > 0) {
+				// 書き込み済みのdocumentがcommitされないよう破棄する
+				try {
+					writer.rollback();
+				} catch (IOException | RuntimeException ex) {
+					e.addSuppressed(ex);
+				}
+			}
+			throw e;
+		}
+		stagedWrites = null;
+		pendingWrites.putAll(staged);
+		numDocs.addAndGet(stagedDocs);
+		return getGeneration();
+	}
+
+	/**
+	 * delete documents whose key starts with prefix and record pending write, caller must hold all key locks
+	 * @param prefix key term prefix
+	 */
+	protected void erasePrefix(Term prefix) {
+		try {
+			int deleted = countPrefix(prefix.bytes());
+			long generation = trackingWriter.deleteDocuments(new PrefixQuery(prefix));
+			addNumDocs(-deleted);
+			invalidateAll(generation);
+			writes().clearPrefix(prefix.bytes(), generation);
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * count live keys which start with prefix, caller must hold all key locks
+	 * @param prefix key term prefix
+	 * @return count
+	 * @throws IOException IOException
+	 */
+	protected int countPrefix(BytesRef prefix) throws IOException {
+		KVSPendingWrites<V> staged = stagedWrites;
+		int count;
+		if (staged == null) {
+			count = pendingWrites.countPrefix(prefix);
+		} else {
+			// batchで書き込んだkeyはbatch側で数える
+			count = staged.countPrefix(prefix);
+			for (Entry<BytesRef, PendingWrite<V>> entry : pendingWrites.entries(prefix).entrySet()) {
+				if (!entry.getValue().isDeleted && !isStaged(staged, entry.getKey())) {
+					count++;
+				}
+			}
+		}
+		long searcherGeneration = searchingGeneration.get();
+		IndexSearcher searcher = manager.acquire();
+		try {
+			IndexReader reader = searcher.getIndexReader();
+			Terms terms = MultiFields.getTerms(reader, KEY);
+			if (terms == null) {
+				return count;
+			}
+			Bits liveDocs = MultiFields.getLiveDocs(reader);
+			TermsEnum termsEnum = terms.iterator();
+			if (termsEnum.seekCeil(prefix) == TermsEnum.SeekStatus.END) {
+				return count;
+			}
+			PostingsEnum postings = null;
+			for (BytesRef term = termsEnum.term(); term != null && StringHelper.startsWith(term, prefix); term = termsEnum.next()) {
+				// pending writeのあるkeyは数え済み
+				if (pendingWrites.get(term) != null || pendingWrites.isClearedAfter(term, searcherGeneration)
+						|| (staged != null && isStaged(staged, term))) {
+					continue;
+				}
+				postings = termsEnum.postings(postings, PostingsEnum.NONE);
+				int doc;
+				while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+					if (liveDocs == null || liveDocs.get(doc)) {
+						count++;
+						break;
+					}
+				}
+			}
+			return count;
+		} finally {
+			manager.release(searcher);
+			searcher = null;
+		}
+	}
+
+	/**
+	 * delete all Keys
+	 * @throws IllegalStateException when it's called in compute or merge function
+	 */
+	@Override
+	public void clear() {
+		keyLocks.lockAll();
+		try {
+			eraseAll();
+		} finally {
+			keyLocks.unlockAll();
+		}
+		afterWrite(1);
+	}
+
+	/**
+	 * delete all documents and record pending write, caller must hold all key locks
+	 */
+	protected void eraseAll() {
+		try {
+			long generation = trackingWriter.deleteAll();
+			numDocs.set(0);
+			invalidateAll(generation);
+			pendingWrites.clear(generation);
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * atomic putIfAbsent by key lock
+	 */
+	@Override
+	public V putIfAbsent(K key, V value) {
+		Term term = keyTerm(key, KEY);
+		ReentrantLock lock = keyLocks.get(term.bytes());
+		V current;
+		lock.lock();
+		try {
+			current = get(key);
+			if (current == null) {
+				write(term, key, value);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (current == null) {
+			afterWrite(1);
+		}
+		return current;
+	}
+
+	/**
+	 * atomic remove by key lock
+	 */
+	@Override
+	public boolean remove(Object key, Object value) {
+		Term term = keyTerm(key, KEY);
+		ReentrantLock lock = keyLocks.get(term.bytes());
+		boolean isRemoved;
+		lock.lock();
+		try {
+			V current = get(key);
+			isRemoved = current != null && current.equals(value);
+			if (isRemoved) {
+				erase(term);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (isRemoved) {
+			afterWrite(1);
+		}
+		return isRemoved;
+	}
+
+	/**
+	 * atomic replace by key lock
+	 */
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		Term term = keyTerm(key, KEY);
+		ReentrantLock lock = keyLocks.get(term.bytes());
+		boolean isReplaced;
+		lock.lock();
+		try {
+			V current = get(key);
+			isReplaced = current != null && current.equals(oldValue);
+			if (isReplaced) {
+				write(term, key, newValue);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (isReplaced) {
+			afterWrite(1);
+		}
+		return isReplaced;
+	}
+
+	/**
+	 * atomic replace by key lock
+	 */
+	@Override
+	public V replace(K key, V value) {
+		Term term = keyTerm(key, KEY);
+		ReentrantLock lock = keyLocks.get(term.bytes());
+		V current;
+		lock.lock();
+		try {
+			current = get(key);
+			if (current != null) {
+				write(term, key, value);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (current != null) {
+			afterWrite(1);
+		}
+		return current;
+	}
+
+	/**
+	 * atomic computeIfAbsent by key lock.
+	 * function runs under key lock, it must not update other keys,
+	 * clear, removeAll and write batch throw IllegalStateException in it
+	 */
+	@Override
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+		return compute(key, (k, current) -> mappingFunction.apply(k), true, false);
+	}
+
+	/**
+	 * atomic computeIfPresent by key lock.
+	 * function runs under key lock, it must not update other keys,
+	 * clear, removeAll and write batch throw IllegalStateException in it
+	 */
+	@Override
+	public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return compute(key, remappingFunction, false, true);
+	}
+
+	/**
+	 * atomic compute by key lock.
+	 * function runs under key lock, it must not update other keys,
+	 * clear, removeAll and write batch throw IllegalStateException in it
+	 */
+	@Override
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return compute(key, remappingFunction, true, true);
+	}
+
+	/**
+	 * atomic merge by key lock.
+	 * function runs under key lock, it must not update other keys,
+	 * clear, removeAll and write batch throw IllegalStateException in it
+	 */
+	@Override
+	public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		return compute(key, (k, current) -> current == null ? value : remappingFunction.apply(current, value), true, true);
+	}
+
+	/**
+	 * compute new value under key lock, null value deletes key
+	 * @param key key
+	 * @param function remapping function of key and current value
+	 * @param isAbsentComputed if true, function is called when key is absent
+	 * @param isPresentComputed if true, function is called when key is present
+	 * @return new value
+	 */
+	protected V compute(K key, BiFunction<? super K, ? super V, ? extends V> function, boolean isAbsentComputed, boolean isPresentComputed) {
+		Term term = keyTerm(key, KEY);
+		ReentrantLock lock = keyLocks.get(term.bytes());
+		V current;
+		V value;
+		lock.lock();
+		try {
+			current = get(key);
+			if (current == null ? !isAbsentComputed : !isPresentComputed) {
+				return current;
+			}
+			value = function.apply(key, current);
+			if (value != null) {
+				write(term, key, value);
+			} else if (current != null) {
+				erase(term);
+			} else {
+				return null;
+			}
+		} finally {
+			lock.unlock();
+		}
+		afterWrite(1);
+		return value;
+	}
+
+	/**
+	 * key set view backed by index, contains is key lookup and iterator reads index in key order by batch
+	 */
+	@Override
+	public Set<K> keySet() {
+		return new LuceneKVSKeySet<K, V>(this);
+	}
+
+	/**
+	 * values view backed by index, iterator reads index in key order by batch
+	 */
+	@Override
+	public Collection<V> values() {
+		return new LuceneKVSValues<K, V>(this);
+	}
+
+	/**
+	 * entry set view backed by index, contains is key lookup and iterator reads index in key order by batch
+	 */
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new LuceneKVSEntrySet<K, V>(this);
+	}
+
+	/**
+	 * create iterator
+	 * @return iterator
+	 */
+	public LuceneKVSIterator<K,V> iterator() {
+		try {
+			return new LuceneKVSIterator<K, V>(manager, this);
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * create spliterator over pinned searcher, it's split along segments
+	 * @return spliterator
+	 */
+	public LuceneKVSSpliterator<K, V> spliterator() {
+		try {
+			return new LuceneKVSSpliterator<K, V>(manager, this);
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * sequential stream of entries, close the stream to release searcher when it's not fully consumed
+	 * @return stream
+	 */
+	public Stream<Entry<K, V>> stream() {
+		LuceneKVSSpliterator<K, V> spliterator = spliterator();
+		return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+	}
+
+	/**
+	 * parallel stream of entries, values are decoded on fork-join workers.
+	 * close the stream to release searcher when it's not fully consumed
+	 * @return stream
+	 */
+	public Stream<Entry<K, V>> parallelStream() {
+		LuceneKVSSpliterator<K, V> spliterator = spliterator();
+		return StreamSupport.stream(spliterator, true).onClose(spliterator::close);
 	}
 
 }
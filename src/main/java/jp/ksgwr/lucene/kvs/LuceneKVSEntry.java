@@ -30,10 +30,9 @@ public class LuceneKVSEntry<K, V> implements java.util.Map.Entry<K, V> {
 		this.parent = parent;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public K getKey() {
-		return (K) doc.get(LuceneKVSBase.KEY);
+		return parent.readKey(doc, LuceneKVSBase.KEY);
 	}
 
 	@Override
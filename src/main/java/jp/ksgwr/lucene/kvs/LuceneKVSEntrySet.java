@@ -0,0 +1,71 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * Lucene KVS entry set view backed by index.
+ * iterator reads entries in term order by batch and merges writes which searcher doesn't reflect yet,
+ * so it's consistent with size and holds no searcher when abandoned.
+ *
+ * @author ksgwr
+ *
+ * @param <K> KeyObject
+ * @param <V> ValueObject
+ */
+public class LuceneKVSEntrySet<K, V> extends AbstractSet<Entry<K, V>> {
+
+	/** parent map */
+	protected final LuceneKVSBase<K, V> parent;
+
+	/**
+	 * constructor
+	 * @param parent parent map
+	 */
+	public LuceneKVSEntrySet(LuceneKVSBase<K, V> parent) {
+		this.parent = parent;
+	}
+
+	@Override
+	public Iterator<Entry<K, V>> iterator() {
+		return new LuceneSortedKVS<K, V>(parent).entrySet().iterator();
+	}
+
+	@Override
+	public int size() {
+		return parent.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return parent.isEmpty();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof Entry)) {
+			return false;
+		}
+		Entry<?, ?> entry = (Entry<?, ?>) o;
+		if (entry.getKey() == null) {
+			return false;
+		}
+		V val = parent.get(entry.getKey());
+		return val != null && val.equals(entry.getValue());
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!contains(o)) {
+			return false;
+		}
+		parent.remove(((Entry<?, ?>) o).getKey());
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		parent.clear();
+	}
+}
@@ -4,6 +4,14 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat.Mode;
+import org.apache.lucene.codecs.lucene53.Lucene53Codec;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.MMapDirectory;
@@ -79,4 +87,213 @@ public class LuceneKVSFactory {
 	public static <T extends LuceneKVSBase> T createInstance(Class<T> clazz) throws InvocationTargetException {
 		return createInstance(clazz, new RAMDirectory());
 	}
+
+	/**
+	 * create builder which tunes index writer config
+	 * @return builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * KVS builder, index writer config is created for each build
+	 */
+	public static class Builder {
+
+		/** lucene directory, null means RAMDirectory */
+		protected Directory directory;
+
+		/** index file */
+		protected File file;
+
+		/** if true, delete file automatically */
+		protected boolean isVolatile = true;
+
+		/** RAM buffer size MB, 0 or less means default */
+		protected double ramBufferSizeMB;
+
+		/** max buffered docs, 0 means default */
+		protected int maxBufferedDocs;
+
+		/** merge policy, null means default */
+		protected MergePolicy mergePolicy;
+
+		/** merge scheduler, null means default */
+		protected MergeScheduler mergeScheduler;
+
+		/** if null, default compound file usage */
+		protected Boolean useCompoundFile;
+
+		/** stored fields compression mode, null means default */
+		protected Mode storedFieldsMode;
+
+		/**
+		 * set directory
+		 * @param directory lucene directory(mmap, nios, ram...)
+		 * @return this builder
+		 */
+		public Builder directory(Directory directory) {
+			this.directory = directory;
+			return this;
+		}
+
+		/**
+		 * set index file, directory is opened by FSDirectory when directory is not set
+		 * @param file index file
+		 * @param isVolatile if true, delete file automatically
+		 * @return this builder
+		 */
+		public Builder file(File file, boolean isVolatile) {
+			this.file = file;
+			this.isVolatile = isVolatile;
+			return this;
+		}
+
+		/**
+		 * set RAM buffer size, larger buffer flushes fewer segments
+		 * @param ramBufferSizeMB RAM buffer size MB
+		 * @return this builder
+		 */
+		public Builder ramBufferSizeMB(double ramBufferSizeMB) {
+			this.ramBufferSizeMB = ramBufferSizeMB;
+			return this;
+		}
+
+		/**
+		 * set max buffered docs
+		 * @param maxBufferedDocs max buffered docs, {@link IndexWriterConfig#DISABLE_AUTO_FLUSH} flushes by RAM only
+		 * @return this builder
+		 */
+		public Builder maxBufferedDocs(int maxBufferedDocs) {
+			this.maxBufferedDocs = maxBufferedDocs;
+			return this;
+		}
+
+		/**
+		 * set merge policy
+		 * @param mergePolicy merge policy, it must not be shared with other writer
+		 * @return this builder
+		 */
+		public Builder mergePolicy(MergePolicy mergePolicy) {
+			this.mergePolicy = mergePolicy;
+			return this;
+		}
+
+		/**
+		 * set merge scheduler
+		 * @param mergeScheduler merge scheduler, it must not be shared with other writer
+		 * @return this builder
+		 */
+		public Builder mergeScheduler(MergeScheduler mergeScheduler) {
+			this.mergeScheduler = mergeScheduler;
+			return this;
+		}
+
+		/**
+		 * set compound file usage of flushed segments
+		 * @param useCompoundFile if true, use compound file
+		 * @return this builder
+		 */
+		public Builder useCompoundFile(boolean useCompoundFile) {
+			this.useCompoundFile = useCompoundFile;
+			return this;
+		}
+
+		/**
+		 * set stored fields compression mode
+		 * @param storedFieldsMode BEST_SPEED or BEST_COMPRESSION
+		 * @return this builder
+		 */
+		public Builder storedFieldsMode(Mode storedFieldsMode) {
+			this.storedFieldsMode = storedFieldsMode;
+			return this;
+		}
+
+		/**
+		 * preset for bulk loading, large RAM buffer, no compound file and fewer merges
+		 * @return this builder
+		 */
+		public Builder bulkLoad() {
+			TieredMergePolicy policy = new TieredMergePolicy();
+			policy.setSegmentsPerTier(30);
+			policy.setMaxMergeAtOnce(30);
+			policy.setNoCFSRatio(0.0);
+			this.ramBufferSizeMB = 256;
+			this.maxBufferedDocs = IndexWriterConfig.DISABLE_AUTO_FLUSH;
+			this.mergePolicy = policy;
+			this.mergeScheduler = new ConcurrentMergeScheduler();
+			this.useCompoundFile = false;
+			this.storedFieldsMode = Mode.BEST_SPEED;
+			return this;
+		}
+
+		/**
+		 * preset for low latency reading, fewer segments and fast stored fields decompression
+		 * @return this builder
+		 */
+		public Builder lowLatencyRead() {
+			TieredMergePolicy policy = new TieredMergePolicy();
+			policy.setSegmentsPerTier(4);
+			policy.setMaxMergeAtOnce(4);
+			policy.setNoCFSRatio(0.0);
+			this.mergePolicy = policy;
+			this.useCompoundFile = false;
+			this.storedFieldsMode = Mode.BEST_SPEED;
+			return this;
+		}
+
+		/**
+		 * create index writer config
+		 * @return new config
+		 */
+		public IndexWriterConfig createIndexWriterConfig() {
+			IndexWriterConfig config = new IndexWriterConfig(new KeywordAnalyzer());
+			if (ramBufferSizeMB > 0) {
+				// auto flushを両方無効にしないようにRAM bufferを先に設定する
+				config.setRAMBufferSizeMB(ramBufferSizeMB);
+			}
+			if (maxBufferedDocs != 0) {
+				config.setMaxBufferedDocs(maxBufferedDocs);
+			}
+			if (mergePolicy != null) {
+				config.setMergePolicy(mergePolicy);
+			}
+			if (mergeScheduler != null) {
+				config.setMergeScheduler(mergeScheduler);
+			}
+			if (useCompoundFile != null) {
+				config.setUseCompoundFile(useCompoundFile);
+			}
+			if (storedFieldsMode != null) {
+				config.setCodec(new Lucene53Codec(storedFieldsMode));
+			}
+			return config;
+		}
+
+		/**
+		 * create instance
+		 * @param clazz LuceneKVS class
+		 * @param <T> value type
+		 * @return new instance
+		 * @throws InvocationTargetException exception
+		 * @throws IOException IOException
+		 */
+		@SuppressWarnings("rawtypes")
+		public <T extends LuceneKVSBase> T build(Class<T> clazz) throws InvocationTargetException, IOException {
+			Directory dir = directory;
+			if (dir == null) {
+				dir = file != null ? FSDirectory.open(file.toPath()) : new RAMDirectory();
+			}
+			try {
+				Class<?>[] types = { Directory.class, File.class, boolean.class, IndexWriterConfig.class };
+				return clazz.getConstructor(types).newInstance(
+						new Object[] { dir, file, isVolatile, createIndexWriterConfig() });
+			} catch (InvocationTargetException e) {
+				throw e;
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalArgumentException(clazz.getName() + " doesn't have IndexWriterConfig constructor", e);
+			}
+		}
+	}
 }
@@ -2,17 +2,22 @@ package jp.ksgwr.lucene.kvs;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
 import jp.ksgwr.lucene.exception.LuceneRuntimeException;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.util.Bits;
 
 /**
- * Lucene KVS Iterator
+ * Lucene KVS Iterator.
+ * documents are read segment by segment, and deleted documents are skipped by liveDocs.
  *
  * @author ksgwr
  *
@@ -39,13 +44,32 @@ public class LuceneKVSIterator<K,V> implements Iterator<Entry<K,V>>{
 	/** document size */
 	protected int size;
 
-	/** current document number */
+	/** segments */
+	protected List<LeafReaderContext> leaves;
+
+	/** current segment number */
+	protected int leafIndex;
+
+	/** current segment reader */
+	protected LeafReader leaf;
+
+	/** live docs of current segment, null when segment has no deletion */
+	protected Bits liveDocs;
+
+	/** next document number in current segment, -1 when not prefetched */
+	protected int leafDoc;
+
+	/** current document number in current segment */
 	protected int docCount;
+
 	/** current procced count */
 	protected int entryCount;
 	/** current procced entry */
 	protected Entry<K, V> currentEntry;
 
+	/** reused stored field visitor */
+	protected KVSStoredFieldVisitor visitor;
+
 	/**
 	 * constructor
 	 * @param manager lucene searcher manager
@@ -62,13 +86,60 @@ public class LuceneKVSIterator<K,V> implements Iterator<Entry<K,V>>{
 		reader = searcher.getIndexReader();
 		maxDoc = reader.maxDoc();
 		size = reader.numDocs();
+		leaves = reader.leaves();
+		leafIndex = -1;
+		leaf = null;
 		docCount = 0;
+		leafDoc = -1;
 		entryCount = 0;
+		visitor = new KVSStoredFieldVisitor();
+	}
+
+	/**
+	 * move to next live document
+	 * @return if true, next live document is found
+	 */
+	protected boolean seekNext() {
+		if (leafDoc >= 0) {
+			return true;
+		}
+		while (searcher != null) {
+			if (leaf != null) {
+				int leafMaxDoc = leaf.maxDoc();
+				while (docCount < leafMaxDoc) {
+					int doc = docCount++;
+					if (liveDocs == null || liveDocs.get(doc)) {
+						leafDoc = doc;
+						return true;
+					}
+				}
+			}
+			if (!nextLeaf()) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * move to next segment
+	 * @return if false, no more segment
+	 */
+	protected boolean nextLeaf() {
+		leafIndex++;
+		if (leafIndex >= leaves.size()) {
+			leaf = null;
+			return false;
+		}
+		leaf = leaves.get(leafIndex).reader();
+		liveDocs = leaf.getLiveDocs();
+		docCount = 0;
+		return true;
 	}
 
 	@Override
 	public boolean hasNext() {
-		boolean hasNext = entryCount < size;
+		boolean hasNext = seekNext();
 		if (!hasNext) {
 			try {
 				close();
@@ -81,16 +152,12 @@ public class LuceneKVSIterator<K,V> implements Iterator<Entry<K,V>>{
 
 	@Override
 	public Entry<K, V> next() {
+		if (!hasNext()) {
+			return null;
+		}
 		try {
-			Document doc;
-			do {
-				if (maxDoc <= docCount) {
-					entryCount++;
-					hasNext();
-					return null;
-				}
-				doc = reader.document(docCount++);
-			} while (doc == null && docCount < maxDoc);
+			Document doc = visitor.load(leaf, leafDoc);
+			leafDoc = -1;
 			entryCount++;
 			currentEntry = new LuceneKVSEntry<K, V>(doc, parent);
 			return currentEntry;
@@ -113,6 +180,7 @@ public class LuceneKVSIterator<K,V> implements Iterator<Entry<K,V>>{
 			manager.release(searcher);
 			searcher = null;
 			reader = null;
+			leaf = null;
 		}
 	}
 
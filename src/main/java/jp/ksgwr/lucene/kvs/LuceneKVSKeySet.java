@@ -0,0 +1,58 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * Lucene KVS key set view backed by index.
+ * iterator reads keys in term order by batch and merges writes which searcher doesn't reflect yet,
+ * so it's consistent with size and holds no searcher when abandoned.
+ *
+ * @author ksgwr
+ *
+ * @param <K> KeyObject
+ * @param <V> ValueObject
+ */
+public class LuceneKVSKeySet<K, V> extends AbstractSet<K> {
+
+	/** parent map */
+	protected final LuceneKVSBase<K, V> parent;
+
+	/**
+	 * constructor
+	 * @param parent parent map
+	 */
+	public LuceneKVSKeySet(LuceneKVSBase<K, V> parent) {
+		this.parent = parent;
+	}
+
+	@Override
+	public Iterator<K> iterator() {
+		return new LuceneSortedKVS<K, V>(parent).keySet().iterator();
+	}
+
+	@Override
+	public int size() {
+		return parent.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return parent.isEmpty();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return parent.containsKey(o);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return parent.remove(o) != null;
+	}
+
+	@Override
+	public void clear() {
+		parent.clear();
+	}
+}
@@ -0,0 +1,224 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import jp.ksgwr.lucene.exception.LuceneRuntimeException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Lucene KVS Spliterator over pinned searcher.
+ * it's split along segments, and document ranges within large segment.
+ * searcher is released when all splits are traversed or {@link #close()} is called.
+ *
+ * @author ksgwr
+ *
+ * @param <K> KeyObject
+ * @param <V> ValueObject
+ */
+public class LuceneKVSSpliterator<K, V> implements Spliterator<Entry<K, V>>, Closeable {
+
+	/** min document count to split a segment */
+	public static final int MIN_SPLIT_SIZE = 1024;
+
+	/** pinned searcher shared by splits */
+	protected final Pin pin;
+
+	/** parent map */
+	protected final LuceneKVSBase<K, V> parent;
+
+	/** segments */
+	protected final List<LeafReaderContext> leaves;
+
+	/** current document number (top level) */
+	protected int doc;
+
+	/** end document number (top level, exclusive) */
+	protected final int end;
+
+	/** current segment number */
+	protected int leafIndex;
+
+	/** reused stored field visitor */
+	protected final KVSStoredFieldVisitor visitor;
+
+	/** if true, this split is traversed */
+	protected boolean isDone;
+
+	/**
+	 * constructor
+	 * @param manager lucene searcher manager
+	 * @param parent parent map
+	 * @throws IOException IOException
+	 */
+	public LuceneKVSSpliterator(SearcherManager manager, LuceneKVSBase<K, V> parent) throws IOException {
+		this(new Pin(manager), parent);
+	}
+
+	/**
+	 * constructor
+	 * @param pin pinned searcher
+	 * @param parent parent map
+	 */
+	private LuceneKVSSpliterator(Pin pin, LuceneKVSBase<K, V> parent) {
+		this(pin, parent, 0, pin.searcher.getIndexReader().maxDoc());
+	}
+
+	/**
+	 * constructor of split
+	 * @param pin pinned searcher
+	 * @param parent parent map
+	 * @param start start document number (top level)
+	 * @param end end document number (top level, exclusive)
+	 */
+	private LuceneKVSSpliterator(Pin pin, LuceneKVSBase<K, V> parent, int start, int end) {
+		this.pin = pin;
+		this.parent = parent;
+		this.leaves = pin.searcher.getIndexReader().leaves();
+		this.doc = start;
+		this.end = end;
+		this.leafIndex = start < end ? ReaderUtil.subIndex(start, leaves) : 0;
+		this.visitor = new KVSStoredFieldVisitor();
+		this.isDone = false;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Entry<K, V>> action) {
+		try {
+			while (doc < end) {
+				LeafReaderContext context = leaves.get(leafIndex);
+				LeafReader leaf = context.reader();
+				int leafEnd = context.docBase + leaf.maxDoc();
+				if (doc >= leafEnd) {
+					leafIndex++;
+					continue;
+				}
+				Bits liveDocs = leaf.getLiveDocs();
+				int leafDoc = doc - context.docBase;
+				doc++;
+				if (liveDocs == null || liveDocs.get(leafDoc)) {
+					Document document = visitor.load(leaf, leafDoc);
+					action.accept(new LuceneKVSEntry<K, V>(document, parent));
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+		done();
+		return false;
+	}
+
+	@Override
+	public Spliterator<Entry<K, V>> trySplit() {
+		if (end - doc < 2) {
+			return null;
+		}
+		int lastLeaf = ReaderUtil.subIndex(end - 1, leaves);
+		int mid;
+		if (leafIndex < lastLeaf) {
+			// segmentの境界で分割する
+			int midLeaf = (leafIndex + lastLeaf + 1) >>> 1;
+			mid = leaves.get(midLeaf).docBase;
+			if (mid <= doc) {
+				mid = leaves.get(leafIndex + 1).docBase;
+			}
+		} else if (end - doc >= MIN_SPLIT_SIZE * 2) {
+			mid = (doc + end) >>> 1;
+		} else {
+			return null;
+		}
+		LuceneKVSSpliterator<K, V> prefix = new LuceneKVSSpliterator<K, V>(pin, parent, doc, mid);
+		pin.splits.incrementAndGet();
+		this.doc = mid;
+		this.leafIndex = ReaderUtil.subIndex(mid, leaves);
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return Math.max(0, end - doc);
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/**
+	 * mark this split traversed, release searcher when all splits are traversed
+	 */
+	protected void done() {
+		if (!isDone) {
+			isDone = true;
+			if (pin.splits.decrementAndGet() == 0) {
+				pin.release();
+			}
+		}
+	}
+
+	/**
+	 * release searcher even if splits are not traversed
+	 */
+	@Override
+	public void close() {
+		pin.release();
+	}
+
+	/**
+	 * searcher shared by splits
+	 */
+	protected static class Pin {
+
+		/** searcher manager */
+		final SearcherManager manager;
+
+		/** pinned searcher */
+		final IndexSearcher searcher;
+
+		/** not traversed split count */
+		final AtomicInteger splits;
+
+		/** if true, searcher is released */
+		final AtomicBoolean isReleased;
+
+		/**
+		 * constructor
+		 * @param manager searcher manager
+		 * @throws IOException IOException
+		 */
+		Pin(SearcherManager manager) throws IOException {
+			this.manager = manager;
+			manager.maybeRefreshBlocking();
+			this.searcher = manager.acquire();
+			this.splits = new AtomicInteger(1);
+			this.isReleased = new AtomicBoolean(false);
+		}
+
+		/**
+		 * release searcher once
+		 */
+		void release() {
+			if (isReleased.compareAndSet(false, true)) {
+				try {
+					manager.release(searcher);
+				} catch (IOException e) {
+					throw new LuceneRuntimeException(e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * Lucene KVS values view backed by index.
+ * iterator reads values in key term order by batch and merges writes which searcher doesn't reflect yet,
+ * so it's consistent with size and holds no searcher when abandoned.
+ *
+ * @author ksgwr
+ *
+ * @param <K> KeyObject
+ * @param <V> ValueObject
+ */
+public class LuceneKVSValues<K, V> extends AbstractCollection<V> {
+
+	/** parent map */
+	protected final LuceneKVSBase<K, V> parent;
+
+	/**
+	 * constructor
+	 * @param parent parent map
+	 */
+	public LuceneKVSValues(LuceneKVSBase<K, V> parent) {
+		this.parent = parent;
+	}
+
+	@Override
+	public Iterator<V> iterator() {
+		final Iterator<Entry<K, V>> ite = new LuceneSortedKVS<K, V>(parent).entrySet().iterator();
+		return new Iterator<V>() {
+			@Override
+			public boolean hasNext() {
+				return ite.hasNext();
+			}
+
+			@Override
+			public V next() {
+				return ite.next().getValue();
+			}
+
+			@Override
+			public void remove() {
+				ite.remove();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return parent.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return parent.isEmpty();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return parent.containsValue(o);
+	}
+
+	@Override
+	public void clear() {
+		parent.clear();
+	}
+}
@@ -0,0 +1,122 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * batch of writes applied by {@link LuceneKVSBase#write(LuceneKVSWriteBatch)}.
+ * writes are applied in added order and committed together.
+ *
+ * @author ksgwr
+ *
+ * @param <K> KeyObject
+ * @param <V> ValueObject
+ */
+public class LuceneKVSWriteBatch<K, V> {
+
+	/**
+	 * write operation type
+	 */
+	public enum Type {
+		/** put key value */
+		PUT,
+		/** delete key */
+		DELETE,
+		/** delete keys which start with prefix */
+		DELETE_PREFIX
+	}
+
+	/** operations */
+	protected final List<Operation<K, V>> operations;
+
+	/**
+	 * constructor
+	 */
+	public LuceneKVSWriteBatch() {
+		this.operations = new ArrayList<Operation<K, V>>();
+	}
+
+	/**
+	 * add put
+	 * @param key key
+	 * @param value value
+	 * @return this batch
+	 */
+	public LuceneKVSWriteBatch<K, V> put(K key, V value) {
+		operations.add(new Operation<K, V>(Type.PUT, key, value));
+		return this;
+	}
+
+	/**
+	 * add delete
+	 * @param key key
+	 * @return this batch
+	 */
+	public LuceneKVSWriteBatch<K, V> delete(Object key) {
+		operations.add(new Operation<K, V>(Type.DELETE, key, null));
+		return this;
+	}
+
+	/**
+	 * add delete of keys which start with prefix
+	 * @param prefix key prefix
+	 * @return this batch
+	 */
+	public LuceneKVSWriteBatch<K, V> deletePrefix(String prefix) {
+		operations.add(new Operation<K, V>(Type.DELETE_PREFIX, prefix, null));
+		return this;
+	}
+
+	/**
+	 * operations
+	 * @return operations in added order
+	 */
+	public List<Operation<K, V>> getOperations() {
+		return operations;
+	}
+
+	/**
+	 * operation count
+	 * @return count
+	 */
+	public int size() {
+		return operations.size();
+	}
+
+	/**
+	 * clear operations, batch can be reused
+	 */
+	public void clear() {
+		operations.clear();
+	}
+
+	/**
+	 * write operation
+	 *
+	 * @param <K> KeyObject
+	 * @param <V> ValueObject
+	 */
+	public static class Operation<K, V> {
+
+		/** operation type */
+		public final Type type;
+
+		/** key, or prefix string of DELETE_PREFIX */
+		public final Object key;
+
+		/** value of PUT */
+		public final V value;
+
+		/**
+		 * constructor
+		 * @param type operation type
+		 * @param key key or prefix
+		 * @param value value
+		 */
+		Operation(Type type, Object key, V value) {
+			this.type = type;
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
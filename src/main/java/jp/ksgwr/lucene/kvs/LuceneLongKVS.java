@@ -3,6 +3,8 @@ package jp.ksgwr.lucene.kvs;
 import java.io.File;
 import java.io.IOException;
 
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 
 /**
@@ -12,7 +14,7 @@ import org.apache.lucene.store.Directory;
  *
  * @param <K> KeyObject
  */
-public class LuceneLongKVS<K> extends LuceneKVS<K, Long> {
+public class LuceneLongKVS<K> extends LuceneNumericKVS<K, Long> {
 
 	/**
 	 * constructor
@@ -25,6 +27,18 @@ public class LuceneLongKVS<K> extends LuceneKVS<K, Long> {
 		super(directory, file, isVolatile);
 	}
 
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config
+	 * @throws IOException IOException
+	 */
+	public LuceneLongKVS(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
+		super(directory, file, isVolatile, config);
+	}
+
 	/**
 	 * constructor
 	 * @throws IOException IOException
@@ -38,5 +52,14 @@ public class LuceneLongKVS<K> extends LuceneKVS<K, Long> {
 		return Long.valueOf(val);
 	}
 
+	@Override
+	public Long valueOf(Number val) {
+		return Long.valueOf(val.longValue());
+	}
+
+	@Override
+	public StoredField writeValue(Long val, String valueFieldName) {
+		return new StoredField(valueFieldName, val.longValue());
+	}
 
 }
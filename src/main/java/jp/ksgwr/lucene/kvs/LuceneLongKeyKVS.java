@@ -0,0 +1,156 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jp.ksgwr.lucene.exception.LuceneRuntimeException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Long Key Object KVS.
+ * keys are stored as 8 byte big endian with flipped sign bit, so term order is numeric order.
+ *
+ * @author ksgwr
+ *
+ * @param <V> ValueObject
+ */
+public class LuceneLongKeyKVS<V> extends LuceneObjectKVS<Long, V> {
+
+	/** key byte length */
+	public static final int KEY_BYTES = 8;
+
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @throws IOException IOException
+	 */
+	public LuceneLongKeyKVS(Directory directory, File file, boolean isVolatile) throws IOException {
+		super(directory, file, isVolatile);
+	}
+
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config
+	 * @throws IOException IOException
+	 */
+	public LuceneLongKeyKVS(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
+		super(directory, file, isVolatile, config);
+	}
+
+	/**
+	 * constructor
+	 * @throws IOException IOException
+	 */
+	public LuceneLongKeyKVS() throws IOException {
+		super();
+	}
+
+	/**
+	 * encode key to sortable bytes
+	 * @param key key
+	 * @return key bytes
+	 */
+	public static BytesRef encode(long key) {
+		long sortable = key ^ Long.MIN_VALUE;
+		byte[] bytes = new byte[KEY_BYTES];
+		for (int i = 0; i < KEY_BYTES; i++) {
+			bytes[i] = (byte) (sortable >>> (56 - i * 8));
+		}
+		return new BytesRef(bytes);
+	}
+
+	/**
+	 * decode key from sortable bytes
+	 * @param bytes key bytes
+	 * @return key
+	 */
+	public static long decode(BytesRef bytes) {
+		if (bytes.length != KEY_BYTES) {
+			throw new IllegalArgumentException("key must be " + KEY_BYTES + " bytes");
+		}
+		long sortable = 0;
+		for (int i = 0; i < KEY_BYTES; i++) {
+			sortable = (sortable << 8) | (bytes.bytes[bytes.offset + i] & 0xffL);
+		}
+		return sortable ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * key object to long
+	 * @param key key
+	 * @return long key
+	 */
+	protected long longKey(Object key) {
+		if (key instanceof Number) {
+			return ((Number) key).longValue();
+		}
+		return Long.parseLong(key.toString());
+	}
+
+	@Override
+	public Term keyTerm(Object key, String keyFieldName) {
+		return new Term(keyFieldName, encode(longKey(key)));
+	}
+
+	@Override
+	public Field writeKey(Long key, String keyFieldName) {
+		return new Field(keyFieldName, encode(key), StringField.TYPE_STORED);
+	}
+
+	@Override
+	public Long keyOf(BytesRef term) {
+		return decode(term);
+	}
+
+	@Override
+	public Long readKey(Document doc, String keyFieldName) {
+		BytesRef bytes = doc.getBinaryValue(keyFieldName);
+		return bytes != null ? decode(bytes) : null;
+	}
+
+	/**
+	 * get Value without boxing key
+	 * @param key key
+	 * @return value, null when not found
+	 */
+	public V get(long key) {
+		return getByTerm(encode(key), 0);
+	}
+
+	/**
+	 * put Key Value without boxing key
+	 * @param key key
+	 * @param val value
+	 * @return value
+	 */
+	public V put(long key, V val) {
+		BytesRef bytes = encode(key);
+		Term term = new Term(KEY, bytes);
+		ReentrantLock lock = keyLocks.get(bytes);
+		lock.lock();
+		try {
+			write(term, createDocument(new Field(KEY, bytes, StringField.TYPE_STORED), val), val);
+		} catch (LuceneRuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new LuceneRuntimeException(e);
+		} finally {
+			lock.unlock();
+		}
+		afterWrite(1);
+		return val;
+	}
+}
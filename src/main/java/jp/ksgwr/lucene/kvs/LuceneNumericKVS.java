@@ -0,0 +1,322 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jp.ksgwr.lucene.exception.LuceneRuntimeException;
+import jp.ksgwr.lucene.kvs.KVSPendingWrites.PendingWrite;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Lucene Numeric Value KVS, values are stored as numeric stored field.
+ * string values written by older version are still readable.
+ *
+ * @author ksgwr
+ *
+ * @param <K> KeyObject
+ * @param <V> ValueObject
+ */
+public abstract class LuceneNumericKVS<K, V extends Number> extends LuceneKVS<K, V> {
+
+	/** reused numeric visitor */
+	private final ThreadLocal<KVSNumericFieldVisitor> visitors;
+
+	/** keys of counters which are not written to index yet, their values are held by pending writes */
+	protected final ConcurrentHashMap<BytesRef, K> counters;
+
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @throws IOException IOException
+	 */
+	public LuceneNumericKVS(Directory directory, File file, boolean isVolatile) throws IOException {
+		super(directory, file, isVolatile);
+		this.visitors = new ThreadLocal<KVSNumericFieldVisitor>();
+		this.counters = new ConcurrentHashMap<BytesRef, K>();
+	}
+
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config
+	 * @throws IOException IOException
+	 */
+	public LuceneNumericKVS(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
+		super(directory, file, isVolatile, config);
+		this.visitors = new ThreadLocal<KVSNumericFieldVisitor>();
+		this.counters = new ConcurrentHashMap<BytesRef, K>();
+	}
+
+	/**
+	 * constructor
+	 * @throws IOException IOException
+	 */
+	public LuceneNumericKVS() throws IOException {
+		super();
+		this.visitors = new ThreadLocal<KVSNumericFieldVisitor>();
+		this.counters = new ConcurrentHashMap<BytesRef, K>();
+	}
+
+	/**
+	 * stored number to ValueObject
+	 * @param val stored number
+	 * @return value object
+	 */
+	public abstract V valueOf(Number val);
+
+	@Override
+	public V readValue(Document doc, String valueFieldName) {
+		IndexableField field = doc.getField(valueFieldName);
+		if (field == null) {
+			return null;
+		}
+		Number number = field.numericValue();
+		if (number != null) {
+			return valueOf(number);
+		}
+		return valueOf(field.stringValue());
+	}
+
+	/**
+	 * load value as primitive without creating value object
+	 * @param key key
+	 * @return visitor holding value, null when not found
+	 */
+	protected KVSNumericFieldVisitor loadNumeric(Object key) {
+		KVSNumericFieldVisitor visitor = visitors.get();
+		if (visitor == null) {
+			visitor = new KVSNumericFieldVisitor(VAL);
+			visitors.set(visitor);
+		}
+		visitor.reset();
+		BytesRef term = keyTerm(key, KEY).bytes();
+		PendingWrite<V> pending = pendingWrites.get(term);
+		if (pending != null) {
+			if (pending.isDeleted) {
+				return null;
+			}
+			visitor.set(pending.value);
+			return visitor;
+		}
+		if (pendingWrites.isClearedAfter(term, searchingGeneration.get()) || !mightContain(term)) {
+			return null;
+		}
+		KVSValueCache<V> cache = valueCache;
+		if (cache != null) {
+			V val = cache.get(term);
+			if (val != null) {
+				visitor.set(val);
+				return visitor;
+			}
+		}
+		try {
+			IndexSearcher searcher = acquireSearcher(0);
+			try {
+				int docId = keyLookup.lookup(searcher.getIndexReader(), term);
+				if (docId < 0) {
+					return null;
+				}
+				// 値のfieldのみ読み込み、Documentは作らない
+				searcher.doc(docId, visitor);
+				return visitor.isFound() ? visitor : null;
+			} finally {
+				manager.release(searcher);
+				searcher = null;
+			}
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * get Value as long
+	 * @param key key
+	 * @param defaultValue value when not found
+	 * @return value
+	 */
+	public long getLong(Object key, long defaultValue) {
+		KVSNumericFieldVisitor visitor = loadNumeric(key);
+		return visitor != null ? visitor.longValue() : defaultValue;
+	}
+
+	/**
+	 * get Value as double
+	 * @param key key
+	 * @param defaultValue value when not found
+	 * @return value
+	 */
+	public double getDouble(Object key, double defaultValue) {
+		KVSNumericFieldVisitor visitor = loadNumeric(key);
+		return visitor != null ? visitor.doubleValue() : defaultValue;
+	}
+
+	/**
+	 * add delta to counter in memory, index is updated by {@link #flushCounters()} or commit.
+	 * absent key is treated as 0. when auto commit is enabled, counter is committed like put.
+	 * @param key key
+	 * @param delta delta
+	 */
+	public void increment(K key, long delta) {
+		addAndGet(key, delta);
+	}
+
+	/**
+	 * add delta to counter in memory and get new value, index is updated by {@link #flushCounters()} or commit.
+	 * absent key is treated as 0. when auto commit is enabled, counter is committed like put.
+	 * @param key key
+	 * @param delta delta
+	 * @return new value
+	 */
+	public long addAndGet(K key, long delta) {
+		return addValue(key, delta).longValue();
+	}
+
+	/**
+	 * add delta to counter under key lock.
+	 * value is held by pending write until flush, so index is read only by first increment.
+	 * @param key key
+	 * @param delta delta
+	 * @return new value
+	 */
+	protected V addValue(K key, long delta) {
+		Term keyTerm = keyTerm(key, KEY);
+		BytesRef term = keyTerm.bytes();
+		ReentrantLock lock = keyLocks.get(term);
+		V val;
+		lock.lock();
+		try {
+			V current = getByTerm(term, 0);
+			val = add(current, delta);
+			if (current == null) {
+				addBloomFilter(keyTerm);
+				numDocs.incrementAndGet();
+			}
+			// 書き込み前のためsearcherのreflesh時にpurgeされないgenerationとする
+			pendingWrites.put(term, val, Long.MAX_VALUE);
+			counters.put(term, key);
+		} finally {
+			lock.unlock();
+		}
+		afterWrite(1);
+		return val;
+	}
+
+	/**
+	 * add delta to value
+	 * @param base current value, null when absent
+	 * @param delta delta
+	 * @return new value
+	 */
+	protected V add(V base, long delta) {
+		return valueOf(base == null ? delta : base.longValue() + delta);
+	}
+
+	/**
+	 * write counters to index, it doesn't commit
+	 */
+	public void flushCounters() {
+		for (BytesRef term : counters.keySet()) {
+			ReentrantLock lock = keyLocks.get(term);
+			lock.lock();
+			try {
+				K key = counters.get(term);
+				PendingWrite<V> pending = pendingWrites.get(term);
+				if (key != null && pending != null && !pending.isDeleted) {
+					// writeで値を反映した後にcounterが取り除かれる
+					write(keyTerm(key, KEY), key, pending.value);
+				} else {
+					counters.remove(term);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * counters are written before reflesh, they are not purged until written
+	 */
+	@Override
+	protected void purgePendingWrites() {
+		flushCounters();
+		super.purgePendingWrites();
+	}
+
+	@Override
+	protected void write(Term term, Document doc, V val) {
+		super.write(term, doc, val);
+		counters.remove(term.bytes());
+	}
+
+	@Override
+	protected void erase(Term term) {
+		super.erase(term);
+		counters.remove(term.bytes());
+	}
+
+	@Override
+	protected void erase(Term[] terms) {
+		super.erase(terms);
+		for (Term term : terms) {
+			counters.remove(term.bytes());
+		}
+	}
+
+	@Override
+	protected void erasePrefix(Term prefix) {
+		super.erasePrefix(prefix);
+		Iterator<BytesRef> ite = counters.keySet().iterator();
+		while (ite.hasNext()) {
+			if (StringHelper.startsWith(ite.next(), prefix.bytes())) {
+				ite.remove();
+			}
+		}
+	}
+
+	@Override
+	protected void eraseAll() {
+		super.eraseAll();
+		counters.clear();
+	}
+
+	/**
+	 * imported value overwrites counter
+	 */
+	@Override
+	protected void importEntry(Term term, Document doc, boolean isUniqueKeys) throws IOException {
+		counters.remove(term.bytes());
+		super.importEntry(term, doc, isUniqueKeys);
+	}
+
+	/**
+	 * commit, counter deltas are written before commit
+	 */
+	@Override
+	public void commit() {
+		flushCounters();
+		super.commit();
+	}
+
+	/**
+	 * counters are written before close, also by shutdown hook
+	 */
+	@Override
+	protected void beforeClose() {
+		flushCounters();
+	}
+}
@@ -4,12 +4,24 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jp.ksgwr.lucene.exception.LuceneRuntimeException;
+import jp.ksgwr.lucene.kvs.KVSBlobStore.BlobRef;
+import jp.ksgwr.lucene.kvs.KVSPendingWrites.PendingWrite;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * Lucene Object KVS
@@ -21,6 +33,18 @@ import org.apache.lucene.store.Directory;
  */
 public class LuceneObjectKVS<K,V> extends LuceneKVSBase<K, V> {
 
+	/** serialized value cache outside java heap, null when cache is disabled */
+	protected KVSOffHeapCache offHeapCache;
+
+	/** large value reference field name */
+	public static final String BLOB = "blob";
+
+	/** value codec */
+	protected ValueCodec<V> codec;
+
+	/** chunked large value store, null when large value is disabled */
+	protected KVSBlobStore blobStore;
+
 	/**
 	 * constructor
 	 * @param directory  Lucene Directory
@@ -30,6 +54,20 @@ public class LuceneObjectKVS<K,V> extends LuceneKVSBase<K, V> {
 	 */
 	public LuceneObjectKVS(Directory directory, File file, boolean isVolatile) throws IOException {
 		super(directory, file, isVolatile);
+		this.codec = new BinaryValueCodec<V>();
+	}
+
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config
+	 * @throws IOException IOException
+	 */
+	public LuceneObjectKVS(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
+		super(directory, file, isVolatile, config);
+		this.codec = new BinaryValueCodec<V>();
 	}
 
 	/**
@@ -38,40 +76,530 @@ public class LuceneObjectKVS<K,V> extends LuceneKVSBase<K, V> {
 	 */
 	public LuceneObjectKVS()  throws IOException {
 		super();
+		this.codec = new BinaryValueCodec<V>();
 	}
 
-	@SuppressWarnings("unchecked")
-	@Override
-	public V readValue(Document doc, String valueFieldName) throws IOException, ClassNotFoundException {
-		ByteArrayInputStream bis = null;
-		byte[] data = doc.getBinaryValue(VAL).bytes;
-		V val = null;
+	/**
+	 * set value codec, values written by other codec may not be readable
+	 * @param codec value codec
+	 */
+	public void setValueCodec(ValueCodec<V> codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * value codec, default is {@link BinaryValueCodec}
+	 * @return value codec
+	 */
+	public ValueCodec<V> getValueCodec() {
+		return codec;
+	}
+
+	/**
+	 * enable serialized value cache outside java heap
+	 * @param maxBytes max off heap bytes
+	 * @param slabSize slab size, value larger than slab is not cached
+	 */
+	public void enableOffHeapCache(long maxBytes, int slabSize) {
+		this.offHeapCache = new KVSOffHeapCache(maxBytes, slabSize);
+	}
+
+	/**
+	 * disable serialized value cache
+	 */
+	public void disableOffHeapCache() {
+		this.offHeapCache = null;
+	}
+
+	/**
+	 * serialized value cache, it's used for hit/miss statistics
+	 * @return off heap cache, null when cache is disabled
+	 */
+	public KVSOffHeapCache getOffHeapCache() {
+		return offHeapCache;
+	}
+
+	/**
+	 * enable chunked large value storage, chunks are stored in another index.
+	 * call this before reading values written by {@link #putStream(Object, InputStream)}.
+	 * @param blobDirectory directory of chunk index, it must not be shared with main index
+	 * @param chunkSize chunk size, only one chunk is held in heap when reading and writing
+	 * @throws IOException IOException
+	 */
+	public synchronized void enableLargeValues(Directory blobDirectory, int chunkSize) throws IOException {
+		if (blobStore == null) {
+			this.blobStore = new KVSBlobStore(blobDirectory, chunkSize);
+		}
+	}
+
+	/**
+	 * enable chunked large value storage on memory with default chunk size
+	 * @throws IOException IOException
+	 */
+	public void enableLargeValues() throws IOException {
+		enableLargeValues(new RAMDirectory(), KVSBlobStore.DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * chunked large value store
+	 * @return blob store, null when large value is disabled
+	 */
+	public KVSBlobStore getBlobStore() {
+		return blobStore;
+	}
+
+	/**
+	 * put encoded value from stream without buffering whole value.
+	 * value is split into chunks, and {@link #get(Object)} decodes all chunks by codec.
+	 * stream is read until end but not closed.
+	 * @param key key
+	 * @param in encoded value stream
+	 * @return value length
+	 */
+	public long putStream(K key, InputStream in) {
+		KVSBlobStore store = blobStore;
+		if (store == null) {
+			throw new IllegalStateException("large value is not enabled");
+		}
+		Term term = keyTerm(key, KEY);
+		ReentrantLock lock = keyLocks.get(term.bytes());
+		BlobRef ref;
+		lock.lock();
 		try {
-			bis = new ByteArrayInputStream(data);
-			ObjectInputStream in = new ObjectInputStream(bis);
-			val = (V) in.readObject();
+			ref = store.write(term.bytes(), in);
+			Document doc = new Document();
+			doc.add(writeKey(key, KEY));
+			doc.add(new StoredField(BLOB, ref.toString()));
+			addBloomFilter(term);
+			boolean isInserted = !exists(term.bytes());
+			long generation = trackingWriter.updateDocument(term, doc);
+			if (isInserted) {
+				numDocs.incrementAndGet();
+			}
+			invalidate(term, generation);
+			// 値はheapに持たず、反映後にindexから読む
+			pendingWrites.touch(term.bytes(), generation);
+			// 古いchunkの削除は次のcommitで反映される
+			store.delete(term.bytes(), ref.blobId);
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
 		} finally {
-			if (bis != null) {
-				bis.close();
+			lock.unlock();
+		}
+		afterWrite(1);
+		return ref.length;
+	}
+
+	/**
+	 * get encoded value as stream, large value is read chunk by chunk.
+	 * stream must be closed, it holds searcher of chunk index.
+	 * stream of replaced or removed value may fail after next commit.
+	 * @param key key
+	 * @return encoded value stream, null when not found
+	 */
+	public InputStream getStream(Object key) {
+		BytesRef term = keyTerm(key, KEY).bytes();
+		PendingWrite<V> pending = pendingWrites.get(term);
+		long generation = 0;
+		try {
+			if (pending != null) {
+				if (pending.isDeleted) {
+					return null;
+				} else if (pending.bytes != null) {
+					BytesRef bytes = pending.bytes;
+					return new ByteArrayInputStream(bytes.bytes, bytes.offset, bytes.length);
+				} else if (pending.hasValue) {
+					return new ByteArrayInputStream(codec.encode(pending.value));
+				}
+				generation = pending.generation;
+			} else if (pendingWrites.isClearedAfter(term, searchingGeneration.get())) {
+				return null;
 			}
+			Document doc = getDocument(term, generation);
+			if (doc == null) {
+				return null;
+			}
+			String ref = doc.get(BLOB);
+			if (ref != null) {
+				return openBlob(ref);
+			}
+			BytesRef bytes = doc.getBinaryValue(VAL);
+			return new ByteArrayInputStream(bytes.bytes, bytes.offset, bytes.length);
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * open chunked value
+	 * @param ref blob reference
+	 * @return stream
+	 * @throws IOException IOException
+	 */
+	protected InputStream openBlob(String ref) throws IOException {
+		KVSBlobStore store = blobStore;
+		if (store == null) {
+			throw new IOException("large value is not enabled");
+		}
+		return store.open(BlobRef.parse(ref));
+	}
+
+	/**
+	 * read whole chunked value
+	 * @param ref blob reference
+	 * @return encoded value
+	 * @throws IOException IOException
+	 */
+	protected BytesRef readBlob(String ref) throws IOException {
+		InputStream in = openBlob(ref);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(BlobRef.parse(ref).length, Integer.MAX_VALUE));
+			byte[] buf = new byte[8192];
+			int size;
+			while ((size = in.read(buf)) > 0) {
+				out.write(buf, 0, size);
+			}
+			return new BytesRef(out.toByteArray());
+		} finally {
+			in.close();
 		}
-		return val;
 	}
 
 	@Override
-	public StoredField writeValue(V val, String valueFieldName) throws IOException {
-		ByteArrayOutputStream bos = null;
-		byte[] data;
+	protected void write(Term term, Document doc, V val) {
+		KVSBlobStore store = blobStore;
+		if (store != null) {
+			try {
+				store.delete(term.bytes());
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+		super.write(term, doc, val);
+	}
+
+	@Override
+	protected void importEntry(Term term, Document doc, boolean isUniqueKeys) throws IOException {
+		KVSBlobStore store = blobStore;
+		if (store != null && !isUniqueKeys) {
+			store.delete(term.bytes());
+		}
+		super.importEntry(term, doc, isUniqueKeys);
+	}
+
+	@Override
+	protected void erase(Term term) {
+		KVSBlobStore store = blobStore;
+		if (store != null) {
+			try {
+				store.delete(term.bytes());
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+		super.erase(term);
+	}
+
+	@Override
+	protected void erase(Term[] terms) {
+		KVSBlobStore store = blobStore;
+		if (store != null) {
+			try {
+				for (Term term : terms) {
+					store.delete(term.bytes());
+				}
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+		super.erase(terms);
+	}
+
+	@Override
+	protected void erasePrefix(Term prefix) {
+		KVSBlobStore store = blobStore;
+		if (store != null) {
+			try {
+				store.deletePrefix(prefix.bytes());
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+		super.erasePrefix(prefix);
+	}
+
+	@Override
+	protected void eraseAll() {
+		KVSBlobStore store = blobStore;
+		if (store != null) {
+			try {
+				store.deleteAll();
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+		super.eraseAll();
+	}
+
+	/**
+	 * commit, chunk deletions are committed after main index
+	 */
+	@Override
+	public void commit() {
+		super.commit();
+		KVSBlobStore store = blobStore;
+		if (store != null) {
+			try {
+				store.commit();
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * close chunk index after main index, it's also called by shutdown hook
+	 */
+	@Override
+	protected void closeResources() throws IOException {
+		KVSBlobStore store = blobStore;
+		if (store != null) {
+			blobStore = null;
+			store.close();
+		}
+	}
+
+	/**
+	 * save index
+	 * @throws IllegalStateException when large values are enabled, use {@link #save(Directory, Directory)}
+	 */
+	@Override
+	public void save(Directory directory) throws IOException {
+		if (blobStore != null) {
+			throw new IllegalStateException("large values are enabled, chunk index must be saved together");
+		}
+		super.save(directory);
+	}
+
+	/**
+	 * save index and chunk index
+	 * @param directory directory of index
+	 * @param blobDirectory directory of chunk index, it's opened by {@link #enableLargeValues(Directory, int)}
+	 * @throws IOException IOException
+	 */
+	public void save(Directory directory, Directory blobDirectory) throws IOException {
+		KVSBlobStore store = blobStore;
+		super.save(directory);
+		if (store != null) {
+			store.save(blobDirectory);
+		}
+	}
+
+	/**
+	 * save index file, chunk index is saved to "{file}.blob" when large values are enabled
+	 */
+	@Override
+	public void save(File file) throws IOException {
+		if (blobStore == null) {
+			super.save(file);
+			return;
+		}
+		save(FSDirectory.open(file.toPath()), FSDirectory.open(new File(file.getPath() + ".blob").toPath()));
+	}
+
+	@Override
+	protected int storedBytes(Document doc) {
+		String ref = doc.get(BLOB);
+		if (ref != null) {
+			return (int) Math.min(BlobRef.parse(ref).length, Integer.MAX_VALUE);
+		}
+		return super.storedBytes(doc);
+	}
+
+	@Override
+	protected V load(BytesRef term, long generation) {
+		KVSOffHeapCache cache = offHeapCache;
+		if (cache == null) {
+			return super.load(term, generation);
+		}
+		try {
+			byte[] data = cache.get(term);
+			if (data != null) {
+				// stored fieldの読み込みと解凍を省略し、デシリアライズのみ行う
+				return deserialize(data, 0, data.length);
+			}
+			long searcherGeneration = awaitSearcher(generation);
+			Document doc = getDocument(term, generation);
+			if (doc == null) {
+				return null;
+			}
+			BytesRef bytes = doc.getBinaryValue(VAL);
+			if (bytes == null) {
+				// 大きな値はcacheしない
+				return readValue(doc, VAL);
+			}
+			cache.put(term, bytes, searcherGeneration);
+			return deserialize(bytes.bytes, bytes.offset, bytes.length);
+		} catch (IOException | ClassNotFoundException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * get stored value bytes without deserialization.
+	 * value in index is returned without copy, returned bytes are owned by caller.
+	 * @param key key
+	 * @return stored bytes, null when not found
+	 */
+	public BytesRef getBytes(Object key) {
+		BytesRef term = keyTerm(key, KEY).bytes();
 		try {
-			bos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bos);
-			out.writeObject(val);
-			data = bos.toByteArray();
+			PendingWrite<V> pending = pendingWrites.get(term);
+			if (pending != null) {
+				if (!pending.hasValue) {
+					return loadBytes(term, pending.generation);
+				}
+				if (pending.isDeleted) {
+					return null;
+				}
+				// 書き込み時にencodeしたbytesは共有されるためコピーして返す
+				return pending.bytes != null ? BytesRef.deepCopyOf(pending.bytes) : new BytesRef(codec.encode(pending.value));
+			}
+			if (pendingWrites.isClearedAfter(term, searchingGeneration.get())) {
+				return null;
+			}
+			KVSOffHeapCache cache = offHeapCache;
+			if (cache != null) {
+				byte[] data = cache.get(term);
+				if (data != null) {
+					return new BytesRef(data);
+				}
+			}
+			return loadBytes(term, 0);
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * copy stored value bytes to buffer without deserialization.
+	 * off heap cached value is copied directly to buffer.
+	 * @param key key
+	 * @param dst destination buffer, position is advanced by length
+	 * @return length, -1 when not found
+	 * @throws BufferOverflowException dst doesn't have enough space
+	 */
+	public int getBytes(Object key, ByteBuffer dst) {
+		BytesRef term = keyTerm(key, KEY).bytes();
+		KVSOffHeapCache cache = offHeapCache;
+		BytesRef bytes;
+		if (cache != null && pendingWrites.get(term) == null && !pendingWrites.isClearedAfter(term, searchingGeneration.get())) {
+			// cacheからはheapを経由せずにコピーする
+			int length = cache.get(term, dst);
+			if (length >= 0) {
+				return length;
+			}
+			try {
+				bytes = loadBytes(term, 0);
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		} else {
+			bytes = getBytes(key);
+		}
+		if (bytes == null) {
+			return -1;
+		}
+		if (dst.remaining() < bytes.length) {
+			throw new BufferOverflowException();
+		}
+		dst.put(bytes.bytes, bytes.offset, bytes.length);
+		return bytes.length;
+	}
+
+	/**
+	 * load stored value bytes from index, only value field is read.
+	 * large value is read from all chunks.
+	 * @param term key term bytes
+	 * @param generation write generation to be visible, 0 or less means current searcher
+	 * @return stored bytes, null when not found
+	 * @throws IOException IOException
+	 */
+	protected BytesRef loadBytes(BytesRef term, long generation) throws IOException {
+		if (!mightContain(term)) {
+			return null;
+		}
+		KVSOffHeapCache cache = offHeapCache;
+		long searcherGeneration = awaitSearcher(generation);
+		// awaitSearcher済みのため待たずに取得する
+		IndexSearcher searcher = manager.acquire();
+		try {
+			int docId = keyLookup.lookup(searcher.getIndexReader(), term);
+			if (docId < 0) {
+				return null;
+			}
+			KVSBinaryFieldVisitor visitor = new KVSBinaryFieldVisitor(VAL);
+			searcher.doc(docId, visitor);
+			BytesRef bytes = visitor.getValue();
+			if (bytes == null) {
+				String ref = searcher.doc(docId).get(BLOB);
+				return ref != null ? readBlob(ref) : null;
+			}
+			if (cache != null) {
+				cache.put(term, bytes, searcherGeneration);
+			}
+			return bytes;
 		} finally {
-			if (bos != null) {
-				bos.close();
+			manager.release(searcher);
+			searcher = null;
+		}
+	}
+
+	@Override
+	protected void invalidate(Term term, long generation) {
+		super.invalidate(term, generation);
+		KVSOffHeapCache cache = offHeapCache;
+		if (cache != null) {
+			cache.invalidate(term.bytes(), generation);
+		}
+	}
+
+	@Override
+	protected void invalidateAll(long generation) {
+		super.invalidateAll(generation);
+		KVSOffHeapCache cache = offHeapCache;
+		if (cache != null) {
+			cache.invalidateAll(generation);
+		}
+	}
+
+	@Override
+	public V readValue(Document doc, String valueFieldName) throws IOException, ClassNotFoundException {
+		BytesRef data = doc.getBinaryValue(valueFieldName);
+		if (data == null) {
+			String ref = doc.get(BLOB);
+			if (ref != null) {
+				data = readBlob(ref);
 			}
 		}
-		return new StoredField(valueFieldName, data);
+		return deserialize(data.bytes, data.offset, data.length);
+	}
+
+	/**
+	 * deserialize value
+	 * @param data serialized bytes
+	 * @param offset offset
+	 * @param length length
+	 * @return value
+	 * @throws IOException IOException
+	 * @throws ClassNotFoundException ClassNotFoundException
+	 */
+	protected V deserialize(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+		return codec.decode(data, offset, length);
+	}
+
+	@Override
+	public StoredField writeValue(V val, String valueFieldName) throws IOException {
+		return new StoredField(valueFieldName, codec.encode(val));
 	}
 }
@@ -3,6 +3,8 @@ package jp.ksgwr.lucene.kvs;
 import java.io.File;
 import java.io.IOException;
 
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 
 /**
@@ -12,7 +14,7 @@ import org.apache.lucene.store.Directory;
  *
  * @param <K> KeyObject
  */
-public class LuceneShortKVS<K> extends LuceneKVS<K, Short> {
+public class LuceneShortKVS<K> extends LuceneNumericKVS<K, Short> {
 
 	/**
 	 * constructor
@@ -25,6 +27,18 @@ public class LuceneShortKVS<K> extends LuceneKVS<K, Short> {
 		super(directory, file, isVolatile);
 	}
 
+	/**
+	 * constructor
+	 * @param directory Lucene Directory
+	 * @param file Index File Path
+	 * @param isVolatile isVolatile, if true, delete file automatically
+	 * @param config index writer config, null means default config
+	 * @throws IOException IOException
+	 */
+	public LuceneShortKVS(Directory directory, File file, boolean isVolatile, IndexWriterConfig config) throws IOException {
+		super(directory, file, isVolatile, config);
+	}
+
 	/**
 	 * constructor
 	 * @throws IOException IOException
@@ -38,4 +52,26 @@ public class LuceneShortKVS<K> extends LuceneKVS<K, Short> {
 		return Short.valueOf(val);
 	}
 
+	@Override
+	public Short valueOf(Number val) {
+		return Short.valueOf(val.shortValue());
+	}
+
+	@Override
+	public StoredField writeValue(Short val, String valueFieldName) {
+		// StoredFieldにshortはないためintで保存する
+		return new StoredField(valueFieldName, val.intValue());
+	}
+
+	/**
+	 * get Value as short without boxing
+	 * @param key key
+	 * @param defaultValue value when not found
+	 * @return value
+	 */
+	public short getShort(Object key, short defaultValue) {
+		KVSNumericFieldVisitor visitor = loadNumeric(key);
+		return visitor != null ? (short) visitor.longValue() : defaultValue;
+	}
+
 }
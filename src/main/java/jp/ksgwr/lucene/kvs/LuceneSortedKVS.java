@@ -0,0 +1,1268 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+import jp.ksgwr.lucene.exception.LuceneRuntimeException;
+import jp.ksgwr.lucene.kvs.KVSPendingWrites.PendingWrite;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Lucene Sorted KVS, NavigableMap view ordered by key term bytes.
+ * range and prefix scans seek the terms dictionary, so they cost O(results).
+ * lower, floor and last seek backward by seekCeil, and descendingMap is a live view.
+ * writes which searcher doesn't reflect yet are merged from the sorted pending writes without copy,
+ * and iterators hold searcher only while reading a batch.
+ *
+ * @author ksgwr
+ *
+ * @param <K> KeyObject
+ * @param <V> ValueObject
+ */
+public class LuceneSortedKVS<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+	/** entries read by one searcher acquisition of iterator */
+	public static final int ITERATOR_BATCH_SIZE = 100;
+
+	/** parent map */
+	protected final LuceneKVSBase<K, V> parent;
+
+	/** lower bound, null means unbounded */
+	protected final BytesRef lower;
+
+	/** if true, lower bound is inclusive */
+	protected final boolean lowerInclusive;
+
+	/** upper bound, null means unbounded */
+	protected final BytesRef upper;
+
+	/** if true, upper bound is inclusive */
+	protected final boolean upperInclusive;
+
+	/** key prefix, null means no prefix */
+	protected final BytesRef prefix;
+
+	/** if true, view is ordered by descending key term */
+	protected final boolean descending;
+
+	/**
+	 * constructor
+	 * @param parent parent map
+	 */
+	public LuceneSortedKVS(LuceneKVSBase<K, V> parent) {
+		this(parent, null, false, null, false, null, false);
+	}
+
+	/**
+	 * constructor of range view
+	 * @param parent parent map
+	 * @param lower lower bound, null means unbounded
+	 * @param lowerInclusive if true, lower bound is inclusive
+	 * @param upper upper bound, null means unbounded
+	 * @param upperInclusive if true, upper bound is inclusive
+	 * @param prefix key prefix, null means no prefix
+	 * @param descending if true, view is ordered by descending key term
+	 */
+	protected LuceneSortedKVS(LuceneKVSBase<K, V> parent, BytesRef lower, boolean lowerInclusive,
+			BytesRef upper, boolean upperInclusive, BytesRef prefix, boolean descending) {
+		this.parent = parent;
+		this.lower = lower;
+		this.lowerInclusive = lowerInclusive;
+		this.upper = upper;
+		this.upperInclusive = upperInclusive;
+		this.prefix = prefix;
+		this.descending = descending;
+	}
+
+	/**
+	 * key term bytes
+	 * @param key key
+	 * @return term bytes
+	 */
+	protected BytesRef term(Object key) {
+		return parent.keyTerm(key, LuceneKVSBase.KEY).bytes();
+	}
+
+	/**
+	 * is term lower than range
+	 * @param term term bytes
+	 * @return if true, term is lower than range
+	 */
+	protected boolean tooLow(BytesRef term) {
+		if (lower != null) {
+			int cmp = term.compareTo(lower);
+			if (cmp < 0 || (cmp == 0 && !lowerInclusive)) {
+				return true;
+			}
+		}
+		return prefix != null && term.compareTo(prefix) < 0;
+	}
+
+	/**
+	 * is term higher than range
+	 * @param term term bytes
+	 * @return if true, term is higher than range
+	 */
+	protected boolean tooHigh(BytesRef term) {
+		if (upper != null) {
+			int cmp = term.compareTo(upper);
+			if (cmp > 0 || (cmp == 0 && !upperInclusive)) {
+				return true;
+			}
+		}
+		return prefix != null && term.compareTo(prefix) > 0 && !StringHelper.startsWith(term, prefix);
+	}
+
+	/**
+	 * is term in range
+	 * @param term term bytes
+	 * @return if true, term is in range
+	 */
+	protected boolean inRange(BytesRef term) {
+		return !tooLow(term) && !tooHigh(term);
+	}
+
+	/**
+	 * is key in range
+	 * @param key key
+	 * @return if true, key is in range
+	 */
+	protected boolean inRange(Object key) {
+		return key != null && inRange(term(key));
+	}
+
+	/**
+	 * is unbounded view
+	 * @return if true, view has no bound
+	 */
+	protected boolean isUnbounded() {
+		return lower == null && upper == null && prefix == null;
+	}
+
+	/**
+	 * create sub view, bounds are given by term order and intersected with this view
+	 * @param from lower bound, null means unbounded
+	 * @param fromInclusive if true, lower bound is inclusive
+	 * @param to upper bound, null means unbounded
+	 * @param toInclusive if true, upper bound is inclusive
+	 * @param subPrefix key prefix, null means no prefix
+	 * @return sub view
+	 */
+	protected LuceneSortedKVS<K, V> subView(BytesRef from, boolean fromInclusive, BytesRef to, boolean toInclusive, BytesRef subPrefix) {
+		BytesRef newLower = lower;
+		boolean newLowerInclusive = lowerInclusive;
+		if (from != null) {
+			int cmp = lower == null ? 1 : from.compareTo(lower);
+			if (cmp > 0 || (cmp == 0 && !fromInclusive)) {
+				newLower = from;
+				newLowerInclusive = fromInclusive;
+			}
+		}
+		BytesRef newUpper = upper;
+		boolean newUpperInclusive = upperInclusive;
+		if (to != null) {
+			int cmp = upper == null ? -1 : to.compareTo(upper);
+			if (cmp < 0 || (cmp == 0 && !toInclusive)) {
+				newUpper = to;
+				newUpperInclusive = toInclusive;
+			}
+		}
+		BytesRef newPrefix = prefix;
+		if (subPrefix != null) {
+			if (prefix == null || StringHelper.startsWith(subPrefix, prefix)) {
+				newPrefix = subPrefix;
+			} else if (!StringHelper.startsWith(prefix, subPrefix)) {
+				// 互いに前方一致しないprefixは空の範囲
+				newLower = subPrefix;
+				newLowerInclusive = true;
+				newUpper = subPrefix;
+				newUpperInclusive = false;
+			}
+		}
+		return new LuceneSortedKVS<K, V>(parent, newLower, newLowerInclusive, newUpper, newUpperInclusive, newPrefix, descending);
+	}
+
+	/**
+	 * prefix scan view, keys start with prefix
+	 * @param keyPrefix key prefix
+	 * @return sub view
+	 */
+	public LuceneSortedKVS<K, V> prefixScan(String keyPrefix) {
+		return subView(null, false, null, false, new BytesRef(keyPrefix));
+	}
+
+	/**
+	 * open cursor
+	 * @return cursor, must be closed
+	 */
+	protected Cursor cursor() {
+		try {
+			return new Cursor();
+		} catch (IOException e) {
+			throw new LuceneRuntimeException(e);
+		}
+	}
+
+	/**
+	 * first entry from term in term order
+	 * @param from start term, null means first of range
+	 * @param inclusive if true, start term is inclusive
+	 * @param loadValue if false, value is not loaded
+	 * @return entry, null when not found
+	 */
+	protected Entry<K, V> first(BytesRef from, boolean inclusive, boolean loadValue) {
+		while (true) {
+			Cursor cursor = cursor();
+			try {
+				Entry<K, V> entry = cursor.seek(from, inclusive) ? cursor.entry(loadValue) : null;
+				if (cursor.isValid()) {
+					return entry;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * last entry to term in term order
+	 * @param to end term, null means last of range
+	 * @param inclusive if true, end term is inclusive
+	 * @param loadValue if false, value is not loaded
+	 * @return entry, null when not found
+	 */
+	protected Entry<K, V> last(BytesRef to, boolean inclusive, boolean loadValue) {
+		while (true) {
+			Cursor cursor = cursor();
+			try {
+				Entry<K, V> entry = cursor.seekBackward(to, inclusive) ? cursor.entry(loadValue) : null;
+				if (cursor.isValid()) {
+					return entry;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * first entry from key in view order
+	 * @param key start key, null means first of view
+	 * @param inclusive if true, start key is inclusive
+	 * @param loadValue if false, value is not loaded
+	 * @return entry, null when not found
+	 */
+	protected Entry<K, V> higher(K key, boolean inclusive, boolean loadValue) {
+		BytesRef term = key == null ? null : term(key);
+		return descending ? last(term, inclusive, loadValue) : first(term, inclusive, loadValue);
+	}
+
+	/**
+	 * last entry to key in view order
+	 * @param key end key, null means last of view
+	 * @param inclusive if true, end key is inclusive
+	 * @param loadValue if false, value is not loaded
+	 * @return entry, null when not found
+	 */
+	protected Entry<K, V> lower(K key, boolean inclusive, boolean loadValue) {
+		BytesRef term = key == null ? null : term(key);
+		return descending ? first(term, inclusive, loadValue) : last(term, inclusive, loadValue);
+	}
+
+	/**
+	 * key of entry
+	 * @param entry entry
+	 * @return key, null when entry is null
+	 */
+	private static <K> K keyOrNull(Entry<K, ?> entry) {
+		return entry == null ? null : entry.getKey();
+	}
+
+	/**
+	 * key of entry
+	 * @param entry entry
+	 * @return key
+	 * @throws NoSuchElementException entry is null
+	 */
+	private static <K> K keyOrThrow(Entry<K, ?> entry) {
+		if (entry == null) {
+			throw new NoSuchElementException();
+		}
+		return entry.getKey();
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+		Comparator<K> comparator = new Comparator<K>() {
+			@Override
+			public int compare(K o1, K o2) {
+				return term(o1).compareTo(term(o2));
+			}
+		};
+		return descending ? Collections.reverseOrder(comparator) : comparator;
+	}
+
+	@Override
+	public V get(Object key) {
+		return inRange(key) ? parent.get(key) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return inRange(key) && parent.containsKey(key);
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if (!inRange(key)) {
+			throw new IllegalArgumentException("key out of range");
+		}
+		return parent.put(key, value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return inRange(key) ? parent.remove(key) : null;
+	}
+
+	@Override
+	public int size() {
+		if (isUnbounded()) {
+			return parent.size();
+		}
+		while (true) {
+			int size = 0;
+			Cursor cursor = cursor();
+			try {
+				for (boolean found = cursor.seek(null, true); found; found = cursor.next()) {
+					size++;
+				}
+				if (cursor.isValid()) {
+					return size;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return isUnbounded() ? parent.isEmpty() : first(null, true, false) == null;
+	}
+
+	@Override
+	public void clear() {
+		if (isUnbounded()) {
+			parent.clear();
+		} else {
+			Iterator<K> ite = keySet().iterator();
+			while (ite.hasNext()) {
+				ite.next();
+				ite.remove();
+			}
+		}
+	}
+
+	@Override
+	public Entry<K, V> lowerEntry(K key) {
+		return lower(key, false, true);
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return keyOrNull(lower(key, false, false));
+	}
+
+	@Override
+	public Entry<K, V> floorEntry(K key) {
+		return lower(key, true, true);
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return keyOrNull(lower(key, true, false));
+	}
+
+	@Override
+	public Entry<K, V> ceilingEntry(K key) {
+		return higher(key, true, true);
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return keyOrNull(higher(key, true, false));
+	}
+
+	@Override
+	public Entry<K, V> higherEntry(K key) {
+		return higher(key, false, true);
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return keyOrNull(higher(key, false, false));
+	}
+
+	@Override
+	public Entry<K, V> firstEntry() {
+		return higher(null, true, true);
+	}
+
+	@Override
+	public Entry<K, V> lastEntry() {
+		return lower(null, true, true);
+	}
+
+	@Override
+	public K firstKey() {
+		return keyOrThrow(higher(null, true, false));
+	}
+
+	@Override
+	public K lastKey() {
+		return keyOrThrow(lower(null, true, false));
+	}
+
+	@Override
+	public Entry<K, V> pollFirstEntry() {
+		Entry<K, V> entry = firstEntry();
+		if (entry != null) {
+			parent.remove(entry.getKey());
+		}
+		return entry;
+	}
+
+	@Override
+	public Entry<K, V> pollLastEntry() {
+		Entry<K, V> entry = lastEntry();
+		if (entry != null) {
+			parent.remove(entry.getKey());
+		}
+		return entry;
+	}
+
+	/**
+	 * descending view of this range, it's backed by index
+	 */
+	@Override
+	public LuceneSortedKVS<K, V> descendingMap() {
+		return new LuceneSortedKVS<K, V>(parent, lower, lowerInclusive, upper, upperInclusive, prefix, !descending);
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return new KeySet();
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return new KeySet();
+	}
+
+	/**
+	 * descending key set view of this range, it's backed by index
+	 */
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	@Override
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		BytesRef from = term(fromKey);
+		BytesRef to = term(toKey);
+		int cmp = from.compareTo(to);
+		if (descending ? cmp < 0 : cmp > 0) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		return descending ? subView(to, toInclusive, from, fromInclusive, null) : subView(from, fromInclusive, to, toInclusive, null);
+	}
+
+	@Override
+	public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		BytesRef to = term(toKey);
+		return descending ? subView(to, inclusive, null, false, null) : subView(null, false, to, inclusive, null);
+	}
+
+	@Override
+	public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		BytesRef from = term(fromKey);
+		return descending ? subView(null, false, from, inclusive, null) : subView(from, inclusive, null, false, null);
+	}
+
+	@Override
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public SortedMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return new CursorIterator<Entry<K, V>>(true) {
+					@Override
+					protected Entry<K, V> current(Entry<K, V> entry) {
+						return entry;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return LuceneSortedKVS.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return LuceneSortedKVS.this.isEmpty();
+			}
+		};
+	}
+
+	/**
+	 * max term lower than target.
+	 * TermsEnum can't move backward, so from the last byte of target, it looks for
+	 * the max term which shares target[0, i) and has smaller byte at i, and then target[0, i) itself
+	 * @param termsEnum terms enum, its position is changed
+	 * @param target target term
+	 * @return term, null when not found
+	 * @throws IOException IOException
+	 */
+	protected static BytesRef lowerTerm(TermsEnum termsEnum, BytesRef target) throws IOException {
+		BytesRefBuilder builder = new BytesRefBuilder();
+		for (int i = target.length - 1; i >= 0; i--) {
+			builder.copyBytes(target.bytes, target.offset, i);
+			int b = maxNextByte(termsEnum, builder, (target.bytes[target.offset + i] & 0xff) - 1);
+			if (b >= 0) {
+				builder.append((byte) b);
+				return maxTerm(termsEnum, builder);
+			}
+			if (termsEnum.seekExact(builder.get())) {
+				return builder.toBytesRef();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * max term which starts with prefix
+	 * @param termsEnum terms enum, its position is changed
+	 * @param prefix prefix which some term starts with, it's changed to max term
+	 * @return term
+	 * @throws IOException IOException
+	 */
+	protected static BytesRef maxTerm(TermsEnum termsEnum, BytesRefBuilder prefix) throws IOException {
+		int b;
+		while ((b = maxNextByte(termsEnum, prefix, 255)) >= 0) {
+			prefix.append((byte) b);
+		}
+		return prefix.toBytesRef();
+	}
+
+	/**
+	 * max byte which follows prefix in terms, it's binary searched by seekCeil
+	 * @param termsEnum terms enum, its position is changed
+	 * @param prefix prefix
+	 * @param max max byte
+	 * @return byte, -1 when no term has byte up to max after prefix
+	 * @throws IOException IOException
+	 */
+	private static int maxNextByte(TermsEnum termsEnum, BytesRefBuilder prefix, int max) throws IOException {
+		int lo = nextByte(termsEnum, prefix, 0, max);
+		if (lo < 0) {
+			return -1;
+		}
+		int hi = max;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			int b = nextByte(termsEnum, prefix, mid, max);
+			if (b >= 0) {
+				lo = b;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * byte which follows prefix in ceil term of prefix + from
+	 * @param termsEnum terms enum, its position is changed
+	 * @param prefix prefix
+	 * @param from min byte
+	 * @param to max byte
+	 * @return byte, -1 when ceil term doesn't start with prefix or byte is larger than to
+	 * @throws IOException IOException
+	 */
+	private static int nextByte(TermsEnum termsEnum, BytesRefBuilder prefix, int from, int to) throws IOException {
+		int length = prefix.length();
+		prefix.append((byte) from);
+		TermsEnum.SeekStatus status = termsEnum.seekCeil(prefix.get());
+		prefix.setLength(length);
+		if (status == TermsEnum.SeekStatus.END) {
+			return -1;
+		}
+		BytesRef term = termsEnum.term();
+		if (term.length <= length || !StringHelper.startsWith(term, prefix.get())) {
+			return -1;
+		}
+		int b = term.bytes[term.offset + length] & 0xff;
+		return b <= to ? b : -1;
+	}
+
+	/**
+	 * cursor over live terms in range, pending writes are merged.
+	 * it holds searcher until closed. writes purged while reading may be missed,
+	 * so result is used only when {@link #isValid()} is true after reading.
+	 */
+	protected class Cursor implements Closeable {
+
+		/** pending writes sorted by term, live view */
+		protected final NavigableMap<BytesRef, PendingWrite<V>> pending;
+
+		/** purge sequence of pending writes before searcher is acquired */
+		protected final long purgeSequence;
+
+		/** searcher */
+		protected IndexSearcher searcher;
+
+		/** write generation which searcher covers at least */
+		protected long searcherGeneration;
+
+		/** terms of key field, null when index has no key */
+		protected Terms terms;
+
+		/** merged terms enum of all segments */
+		protected TermsEnum termsEnum;
+
+		/** top level live docs */
+		protected Bits liveDocs;
+
+		/** reused postings */
+		protected PostingsEnum postings;
+
+		/** if true, cursor moves backward */
+		protected boolean isBackward;
+
+		/** next term of index, null when no more term */
+		protected BytesRef indexTerm;
+
+		/** document id of next term of index */
+		protected int indexDocId;
+
+		/** next pending put, null when no more put */
+		protected Entry<BytesRef, PendingWrite<V>> pendingEntry;
+
+		/** current term */
+		protected BytesRef term;
+
+		/** current document id, -1 when current term is pending write */
+		protected int docId;
+
+		/** current pending write, null when current term is read from index */
+		protected PendingWrite<V> write;
+
+		/**
+		 * constructor
+		 * @throws IOException IOException
+		 */
+		protected Cursor() throws IOException {
+			this.pending = parent.pendingWrites.entries();
+			// searcherより先に読み、以前にpurgeされた書き込みはsearcherが反映している
+			this.purgeSequence = parent.pendingWrites.getPurgeSequence();
+			this.searcherGeneration = parent.awaitSearcher(0);
+			this.searcher = parent.manager.acquire();
+			IndexReader reader = searcher.getIndexReader();
+			this.terms = MultiFields.getTerms(reader, LuceneKVSBase.KEY);
+			if (terms != null) {
+				this.termsEnum = terms.iterator();
+				this.liveDocs = MultiFields.getLiveDocs(reader);
+			}
+		}
+
+		/**
+		 * move to first live term from term
+		 * @param from start term, null means first of range
+		 * @param inclusive if true, start term is inclusive
+		 * @return if false, no term
+		 */
+		protected boolean seek(BytesRef from, boolean inclusive) {
+			isBackward = false;
+			// rangeの下限, prefix, 指定keyのうち最大の位置から始める
+			BytesRef start = from;
+			boolean startInclusive = inclusive;
+			if (prefix != null && (start == null || prefix.compareTo(start) > 0)) {
+				start = prefix;
+				startInclusive = true;
+			}
+			if (lower != null) {
+				int cmp = start == null ? 1 : lower.compareTo(start);
+				if (cmp > 0) {
+					start = lower;
+					startInclusive = lowerInclusive;
+				} else if (cmp == 0) {
+					startInclusive &= lowerInclusive;
+				}
+			}
+			// isLiveが参照するため先に位置づける
+			pendingEntry = nextPut(start, startInclusive);
+			try {
+				indexTerm = null;
+				if (termsEnum != null) {
+					BytesRef next;
+					if (start == null) {
+						next = termsEnum.next();
+					} else if (termsEnum.seekCeil(start) == TermsEnum.SeekStatus.END) {
+						next = null;
+					} else {
+						next = termsEnum.term();
+						if (!startInclusive && next.equals(start)) {
+							next = termsEnum.next();
+						}
+					}
+					indexTerm = forward(next);
+				}
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+			return next();
+		}
+
+		/**
+		 * move to last live term to term
+		 * @param to end term, null means last of range
+		 * @param inclusive if true, end term is inclusive
+		 * @return if false, no term
+		 */
+		protected boolean seekBackward(BytesRef to, boolean inclusive) {
+			isBackward = true;
+			BytesRef end = to;
+			boolean endInclusive = inclusive;
+			if (upper != null) {
+				int cmp = end == null ? -1 : upper.compareTo(end);
+				if (cmp < 0) {
+					end = upper;
+					endInclusive = upperInclusive;
+				} else if (cmp == 0) {
+					endInclusive &= upperInclusive;
+				}
+			}
+			// prefixより後ろの書き込みは読まない
+			BytesRef pendingEnd = end;
+			boolean pendingEndInclusive = endInclusive;
+			BytesRef prefixEnd = prefix == null ? null : KVSPendingWrites.prefixEnd(prefix);
+			if (prefixEnd != null && (end == null || prefixEnd.compareTo(end) <= 0)) {
+				pendingEnd = prefixEnd;
+				pendingEndInclusive = false;
+			}
+			pendingEntry = nextPut(pendingEnd, pendingEndInclusive);
+			try {
+				indexTerm = null;
+				if (termsEnum != null) {
+					BytesRef prev;
+					if (end == null) {
+						BytesRef max = terms.getMax();
+						prev = max == null ? null : BytesRef.deepCopyOf(max);
+					} else if (endInclusive && termsEnum.seekExact(end)) {
+						prev = BytesRef.deepCopyOf(end);
+					} else {
+						prev = lowerTerm(termsEnum, end);
+					}
+					indexTerm = backward(prev);
+				}
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+			return next();
+		}
+
+		/**
+		 * move to next live term in moving direction
+		 * @return if false, no more term
+		 */
+		protected boolean next() {
+			if (indexTerm == null && pendingEntry == null) {
+				return false;
+			}
+			if (indexTerm != null && pendingEntry != null && pendingEntry.getKey().equals(indexTerm)) {
+				// isLiveの後に書き込まれたkeyは書き込み待ちの値を使う
+				nextIndexTerm(indexTerm);
+			}
+			boolean isPending;
+			if (indexTerm == null) {
+				isPending = true;
+			} else if (pendingEntry == null) {
+				isPending = false;
+			} else {
+				int cmp = pendingEntry.getKey().compareTo(indexTerm);
+				isPending = isBackward ? cmp > 0 : cmp < 0;
+			}
+			if (isPending) {
+				term = pendingEntry.getKey();
+				docId = -1;
+				write = pendingEntry.getValue();
+				pendingEntry = nextPut(term, false);
+				return true;
+			}
+			term = indexTerm;
+			docId = indexDocId;
+			write = null;
+			nextIndexTerm(term);
+			return true;
+		}
+
+		/**
+		 * move index term to next live term
+		 * @param current term on which index term is positioned
+		 */
+		private void nextIndexTerm(BytesRef current) {
+			try {
+				if (isBackward) {
+					indexTerm = backward(lowerTerm(termsEnum, current));
+				} else {
+					// 前進中はtermsEnumがindexTermに位置しているため続きから読める
+					indexTerm = forward(termsEnum.next());
+				}
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+
+		/**
+		 * first live term of index from positioned term
+		 * @param next term on which termsEnum is positioned, null means end
+		 * @return copied term, null when no more term in range
+		 * @throws IOException IOException
+		 */
+		private BytesRef forward(BytesRef next) throws IOException {
+			for (; next != null; next = termsEnum.next()) {
+				if (tooHigh(next)) {
+					return null;
+				}
+				if (isLive(next, false)) {
+					return BytesRef.deepCopyOf(next);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * last live term of index to term
+		 * @param prev term, null means no term
+		 * @return term, null when no more term in range
+		 * @throws IOException IOException
+		 */
+		private BytesRef backward(BytesRef prev) throws IOException {
+			while (prev != null) {
+				if (tooLow(prev)) {
+					return null;
+				}
+				if (tooHigh(prev)) {
+					// prefixより後ろのtermはprefixを持つ最大のtermへ移る
+					prev = null;
+					if (termsEnum.seekCeil(prefix) != TermsEnum.SeekStatus.END && StringHelper.startsWith(termsEnum.term(), prefix)) {
+						BytesRefBuilder builder = new BytesRefBuilder();
+						builder.copyBytes(prefix);
+						prev = maxTerm(termsEnum, builder);
+					}
+					continue;
+				}
+				if (isLive(prev, true)) {
+					return prev;
+				}
+				prev = lowerTerm(termsEnum, prev);
+			}
+			return null;
+		}
+
+		/**
+		 * is index term live, term which has pending write or is cleared is not live
+		 * @param term term
+		 * @param isSeekRequired if true, termsEnum is not positioned on term
+		 * @return if true, term is live and indexDocId is set
+		 * @throws IOException IOException
+		 */
+		private boolean isLive(BytesRef term, boolean isSeekRequired) throws IOException {
+			if (pending.get(term) != null) {
+				// 読み進めた後に書き込まれたkeyは書き込み待ちから読み直す
+				if (pendingEntry == null || (isBackward ? pendingEntry.getKey().compareTo(term) < 0 : pendingEntry.getKey().compareTo(term) > 0)) {
+					pendingEntry = nextPut(term, true);
+				}
+				return false;
+			}
+			if (parent.pendingWrites.isClearedAfter(term, searcherGeneration)) {
+				return false;
+			}
+			if (isSeekRequired && !termsEnum.seekExact(term)) {
+				return false;
+			}
+			postings = termsEnum.postings(postings, PostingsEnum.NONE);
+			int doc;
+			while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+				if (liveDocs == null || liveDocs.get(doc)) {
+					indexDocId = doc;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * next pending put in moving direction, it's looked up each time
+		 * so that writes after cursor is opened are found
+		 * @param from start term, null means first in moving direction
+		 * @param inclusive if true, start term is inclusive
+		 * @return entry, null when no more put in range
+		 */
+		private Entry<BytesRef, PendingWrite<V>> nextPut(BytesRef from, boolean inclusive) {
+			Entry<BytesRef, PendingWrite<V>> entry;
+			if (from == null) {
+				entry = isBackward ? pending.lastEntry() : pending.firstEntry();
+			} else if (isBackward) {
+				entry = inclusive ? pending.floorEntry(from) : pending.lowerEntry(from);
+			} else {
+				entry = inclusive ? pending.ceilingEntry(from) : pending.higherEntry(from);
+			}
+			while (entry != null) {
+				if (isBackward ? tooLow(entry.getKey()) : tooHigh(entry.getKey())) {
+					return null;
+				}
+				if (!entry.getValue().isDeleted) {
+					return entry;
+				}
+				entry = isBackward ? pending.lowerEntry(entry.getKey()) : pending.higherEntry(entry.getKey());
+			}
+			return null;
+		}
+
+		/**
+		 * test that no pending write was purged while reading,
+		 * otherwise write which searcher doesn't reflect may be missed
+		 * @return if false, read again by new cursor
+		 */
+		protected boolean isValid() {
+			return parent.pendingWrites.getPurgeSequence() == purgeSequence;
+		}
+
+		/**
+		 * current key
+		 * @return key
+		 */
+		protected K key() {
+			return parent.keyOf(term);
+		}
+
+		/**
+		 * current entry
+		 * @param loadValue if false, value is not loaded
+		 * @return entry
+		 */
+		protected Entry<K, V> entry(boolean loadValue) {
+			if (!loadValue) {
+				return new SimpleImmutableEntry<K, V>(key(), null);
+			}
+			if (write != null) {
+				return new PendingEntry(key(), parent.pendingValue(term, write));
+			}
+			try {
+				return new LuceneKVSEntry<K, V>(searcher.doc(docId), parent);
+			} catch (IOException e) {
+				throw new LuceneRuntimeException(e);
+			}
+		}
+
+		@Override
+		public void close() {
+			if (searcher != null) {
+				try {
+					parent.manager.release(searcher);
+				} catch (IOException e) {
+					throw new LuceneRuntimeException(e);
+				}
+				searcher = null;
+				termsEnum = null;
+			}
+		}
+	}
+
+	/**
+	 * entry of pending write, setValue writes to parent
+	 */
+	protected class PendingEntry extends SimpleEntry<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * constructor
+		 * @param key key
+		 * @param value value
+		 */
+		protected PendingEntry(K key, V value) {
+			super(key, value);
+		}
+
+		@Override
+		public V setValue(V value) {
+			super.setValue(value);
+			return parent.put(getKey(), value);
+		}
+	}
+
+	/**
+	 * iterator in view order, entries are read by batch.
+	 * searcher is released after each batch, so iterator which is not exhausted holds no searcher
+	 *
+	 * @param <T> element type
+	 */
+	protected abstract class CursorIterator<T> implements Iterator<T> {
+
+		/** if false, value is not loaded */
+		private final boolean loadValue;
+
+		/** read entries */
+		private final ArrayDeque<Entry<K, V>> batch = new ArrayDeque<Entry<K, V>>();
+
+		/** last read term, null when batch is not read yet */
+		private BytesRef position;
+
+		/** if true, all entries are read */
+		private boolean isEnd;
+
+		/** last returned key */
+		private K lastKey;
+
+		/**
+		 * constructor
+		 * @param loadValue if false, value is not loaded
+		 */
+		protected CursorIterator(boolean loadValue) {
+			this.loadValue = loadValue;
+		}
+
+		/**
+		 * element of entry
+		 * @param entry entry
+		 * @return element
+		 */
+		protected abstract T current(Entry<K, V> entry);
+
+		/**
+		 * read next batch after last read term
+		 */
+		private void read() {
+			while (true) {
+				Cursor cursor = cursor();
+				try {
+					boolean found = descending ? cursor.seekBackward(position, position == null) : cursor.seek(position, position == null);
+					BytesRef last = position;
+					int count = 0;
+					while (found) {
+						batch.add(cursor.entry(loadValue));
+						last = cursor.term;
+						if (++count >= ITERATOR_BATCH_SIZE) {
+							break;
+						}
+						found = cursor.next();
+					}
+					if (cursor.isValid()) {
+						position = last;
+						isEnd = !found;
+						return;
+					}
+					// reflesh中に読んだbatchは読み直す
+					batch.clear();
+				} finally {
+					cursor.close();
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (batch.isEmpty() && !isEnd) {
+				read();
+			}
+			return !batch.isEmpty();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entry<K, V> entry = batch.poll();
+			lastKey = entry.getKey();
+			return current(entry);
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null) {
+				throw new IllegalStateException();
+			}
+			parent.remove(lastKey);
+			lastKey = null;
+		}
+	}
+
+	/**
+	 * navigable key set view of range
+	 */
+	protected class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+
+		@Override
+		public Iterator<K> iterator() {
+			return new CursorIterator<K>(false) {
+				@Override
+				protected K current(Entry<K, V> entry) {
+					return entry.getKey();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return LuceneSortedKVS.this.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return LuceneSortedKVS.this.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return LuceneSortedKVS.this.remove(o) != null;
+		}
+
+		@Override
+		public void clear() {
+			LuceneSortedKVS.this.clear();
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return LuceneSortedKVS.this.comparator();
+		}
+
+		@Override
+		public K first() {
+			return firstKey();
+		}
+
+		@Override
+		public K last() {
+			return lastKey();
+		}
+
+		@Override
+		public K lower(K e) {
+			return lowerKey(e);
+		}
+
+		@Override
+		public K floor(K e) {
+			return floorKey(e);
+		}
+
+		@Override
+		public K ceiling(K e) {
+			return ceilingKey(e);
+		}
+
+		@Override
+		public K higher(K e) {
+			return higherKey(e);
+		}
+
+		@Override
+		public K pollFirst() {
+			return keyOrNull(pollFirstEntry());
+		}
+
+		@Override
+		public K pollLast() {
+			return keyOrNull(pollLastEntry());
+		}
+
+		@Override
+		public NavigableSet<K> descendingSet() {
+			return descendingKeySet();
+		}
+
+		@Override
+		public Iterator<K> descendingIterator() {
+			return descendingKeySet().iterator();
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+			return subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return headMap(toElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return tailMap(fromElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public SortedSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package jp.ksgwr.lucene.kvs;
+
+import java.io.IOException;
+
+/**
+ * value codec of LuceneObjectKVS, it converts value object to stored bytes.
+ * implementation must be thread safe.
+ *
+ * @author ksgwr
+ *
+ * @param <V> ValueObject
+ */
+public interface ValueCodec<V> {
+
+	/**
+	 * encode value
+	 * @param value value object
+	 * @return stored bytes
+	 * @throws IOException IOException
+	 */
+	byte[] encode(V value) throws IOException;
+
+	/**
+	 * decode value
+	 * @param data stored bytes
+	 * @param offset offset
+	 * @param length length
+	 * @return value object
+	 * @throws IOException IOException
+	 * @throws ClassNotFoundException ClassNotFoundException
+	 */
+	V decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException;
+}
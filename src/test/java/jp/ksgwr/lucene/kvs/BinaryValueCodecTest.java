@@ -0,0 +1,108 @@
+package jp.ksgwr.lucene.kvs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+public class BinaryValueCodecTest {
+
+	private Object roundTrip(BinaryValueCodec<Object> codec, Object value) throws Exception {
+		byte[] data = codec.encode(value);
+		return codec.decode(data, 0, data.length);
+	}
+
+	@Test
+	public void roundTripTest() throws Exception {
+		BinaryValueCodec<Object> codec = new BinaryValueCodec<Object>();
+		for (Object value : new Object[] { null, true, (byte) -1, (short) 300, -42, Long.MIN_VALUE, 1.5f, Math.PI, 'x', "\u65e5\u672c", "" }) {
+			assertEquals(value, roundTrip(codec, value));
+		}
+		assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) roundTrip(codec, new byte[] { 1, 2, 3 }));
+
+		List<Object> list = new ArrayList<Object>(Arrays.asList(1, "a", null, 2L));
+		assertEquals(list, roundTrip(codec, list));
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("list", list);
+		map.put("set", new LinkedHashSet<String>(Arrays.asList("b", "a")));
+		map.put("tree", new TreeMap<String, Integer>());
+		assertEquals(map, roundTrip(codec, map));
+		assertEquals(Arrays.asList("b", "a"), new ArrayList<Object>((LinkedHashSet<?>) ((Map<?, ?>) roundTrip(codec, map)).get("set")));
+
+		// unregistered class is written by java serialization
+		Sample sample = new Sample("hoge", 10);
+		Sample actual = (Sample) roundTrip(codec, sample);
+		assertEquals("hoge", actual.name);
+		assertEquals(10, actual.age);
+	}
+
+	@Test
+	public void registerTest() throws Exception {
+		BinaryValueCodec<Object> codec = new BinaryValueCodec<Object>().register(Sample.class, 1);
+		Sample sample = new Sample("hoge", -3);
+		sample.tags = new ArrayList<String>(Arrays.asList("x"));
+		sample.cache = new Object();
+		Sample actual = (Sample) roundTrip(codec, sample);
+		assertEquals("hoge", actual.name);
+		assertEquals(-3, actual.age);
+		assertEquals(Arrays.asList("x"), actual.tags);
+		assertNull(actual.cache);
+
+		byte[] data = codec.encode(sample);
+		assertTrue(data.length * 5 < JavaSerializationCodec.serialize(sample).length);
+
+		try {
+			new BinaryValueCodec<Object>().decode(data, 0, data.length);
+			fail();
+		} catch (ClassNotFoundException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void legacyValueTest() throws IOException {
+		RAMDirectory directory = new RAMDirectory();
+		LuceneObjectKVS<String, Sample> legacy = new LuceneObjectKVS<String, Sample>(directory, null, false);
+		legacy.setValueCodec(new JavaSerializationCodec<Sample>());
+		legacy.put("a", new Sample("hoge", 10));
+		legacy.close();
+
+		LuceneObjectKVS<String, Sample> kvs = new LuceneObjectKVS<String, Sample>(directory, null, false);
+		((BinaryValueCodec<Sample>) kvs.getValueCodec()).register(Sample.class, 1);
+		assertEquals("hoge", kvs.get("a").name);
+		kvs.put("b", new Sample("fuga", 20));
+		kvs.commit();
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertEquals(20, kvs.get("b").age);
+		kvs.close();
+	}
+
+	/**
+	 * sample pojo class
+	 */
+	public static class Sample implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public String name;
+		public int age;
+		public List<String> tags;
+		public transient Object cache;
+
+		public Sample() {
+		}
+
+		public Sample(String name, int age) {
+			this.name = name;
+			this.age = age;
+		}
+	}
+}
@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Map;
 
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat.Mode;
+import org.apache.lucene.index.LiveIndexWriterConfig;
 import org.junit.Test;
 
 public class LuceneKVSFactoryTest {
@@ -29,4 +31,24 @@ public class LuceneKVSFactoryTest {
 		assertEquals("aval", kvs.get("a"));
 
 	}
+
+	@Test
+	public void builderTest() throws InvocationTargetException, IOException {
+		@SuppressWarnings("unchecked")
+		LuceneStringKVS<String> kvs = LuceneKVSFactory.builder().bulkLoad().build(LuceneStringKVS.class);
+		LiveIndexWriterConfig config = kvs.writer.getConfig();
+		assertEquals(256, config.getRAMBufferSizeMB(), 0);
+		assertFalse(config.getUseCompoundFile());
+
+		kvs.put("a", "aval");
+		assertEquals("aval", kvs.get("a"));
+		kvs.close();
+
+		@SuppressWarnings("unchecked")
+		LuceneObjectKVS<String, Integer> objectKVS = LuceneKVSFactory.builder().lowLatencyRead()
+				.storedFieldsMode(Mode.BEST_COMPRESSION).build(LuceneObjectKVS.class);
+		objectKVS.put("a", 1);
+		assertEquals(Integer.valueOf(1), objectKVS.get("a"));
+		objectKVS.close();
+	}
 }
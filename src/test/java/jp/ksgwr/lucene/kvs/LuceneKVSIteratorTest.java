@@ -25,4 +25,24 @@ public class LuceneKVSIteratorTest {
 
 		kvs.close();
 	}
+
+	@Test
+	public void deletedTest() throws IOException {
+		LuceneKVS<String, String> kvs = new LuceneStringKVS<String>();
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+		kvs.put("c", "cval");
+		kvs.put("a", "aval2");
+		kvs.remove("b");
+
+		LuceneKVSIterator<String, String> ite = kvs.iterator();
+
+		assertEquals(2, ite.size());
+		assertEquals("cval", ite.next().getValue());
+		assertEquals("aval2", ite.next().getValue());
+		assertEquals(false, ite.hasNext());
+		assertNull(ite.next());
+
+		kvs.close();
+	}
 }
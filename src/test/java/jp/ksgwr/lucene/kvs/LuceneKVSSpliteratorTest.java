@@ -0,0 +1,66 @@
+package jp.ksgwr.lucene.kvs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class LuceneKVSSpliteratorTest {
+
+	@Test
+	public void parallelStreamTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+		Map<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < 5000; i++) {
+			map.put("key" + i, "val" + i);
+		}
+		kvs.putAll(map);
+		kvs.commit();
+		kvs.put("key0", "val0");
+		kvs.remove("key1");
+		kvs.commit();
+
+		try (Stream<Entry<String, String>> stream = kvs.parallelStream()) {
+			Map<String, String> actual = stream.collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue()));
+			assertEquals(4999, actual.size());
+			assertEquals("val0", actual.get("key0"));
+			assertNull(actual.get("key1"));
+		}
+
+		try (Stream<Entry<String, String>> stream = kvs.stream()) {
+			assertEquals(4999, stream.count());
+		}
+
+		kvs.close();
+	}
+
+	@Test
+	public void splitTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+		for (int i = 0; i < 3000; i++) {
+			kvs.put("key" + i, "val" + i);
+		}
+		kvs.commit();
+
+		LuceneKVSSpliterator<String, String> spliterator = kvs.spliterator();
+		Spliterator<Entry<String, String>> prefix = spliterator.trySplit();
+		assertNotNull(prefix);
+		assertEquals(3000, prefix.estimateSize() + spliterator.estimateSize());
+
+		int[] count = new int[1];
+		prefix.forEachRemaining(e -> count[0]++);
+		spliterator.forEachRemaining(e -> count[0]++);
+		assertEquals(3000, count[0]);
+
+		kvs.close();
+	}
+}
@@ -3,8 +3,27 @@ package jp.ksgwr.lucene.kvs;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import jp.ksgwr.lucene.exception.LuceneRuntimeException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.junit.Test;
 
 public class LuceneKVSTest {
@@ -27,4 +46,734 @@ public class LuceneKVSTest {
 		assertEquals(val, valObj);
 	}
 
+	@Test
+	public void groupCommitTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.enableGroupCommit(60000, 10);
+
+		for (int i = 0; i < 5; i++) {
+			kvs.put("key" + i, "val" + i);
+		}
+		assertEquals(5, kvs.getCommitScheduler().getPendingOps());
+
+		kvs.sync();
+		assertEquals(0, kvs.getCommitScheduler().getPendingOps());
+		assertEquals(5, kvs.size());
+		assertEquals("val3", kvs.get("key3"));
+
+		kvs.disableGroupCommit();
+		assertNull(kvs.getCommitScheduler());
+
+		kvs.close();
+	}
+
+	@Test
+	public void groupCommitFailureTest() throws Exception {
+		final AtomicBoolean isBroken = new AtomicBoolean(true);
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>() {
+			@Override
+			public void commit() {
+				if (isBroken.getAndSet(false)) {
+					throw new IllegalStateException("broken commit");
+				}
+				super.commit();
+			}
+		};
+		kvs.enableGroupCommit(60000, 2);
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+		// background commit fails and it's thrown by next sync
+		while (kvs.getCommitScheduler().failure.get() == null) {
+			Thread.sleep(10);
+		}
+		try {
+			kvs.sync();
+			fail();
+		} catch (LuceneRuntimeException e) {
+			assertEquals("broken commit", e.getCause().getMessage());
+		}
+		kvs.sync();
+		assertEquals(0, kvs.getCommitScheduler().getPendingOps());
+		assertEquals("bval", kvs.get("b"));
+
+		kvs.close();
+	}
+
+	@Test
+	public void nearRealTimeTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.enableNearRealTime(1.0, 0.01);
+		kvs.setAutoCommit(false);
+
+		assertTrue(kvs.isNearRealTime());
+
+		kvs.put("a", "aval");
+		long generation = kvs.getGeneration();
+
+		assertEquals("aval", kvs.get("a", generation));
+
+		kvs.close();
+	}
+
+	@Test
+	public void generationTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+
+		kvs.put("a", "aval");
+		// size counts unflushed write
+		assertEquals(1, kvs.size());
+		// unflushed write is read from pending writes
+		assertEquals("aval", kvs.get("a"));
+
+		// read-your-writes token reflesh without commit
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertEquals(1, kvs.keySet().stream().count());
+		assertEquals("aval", kvs.get("a", kvs.getGeneration()));
+		assertTrue(kvs.writer.hasUncommittedChanges());
+
+		// pending writes are bounded without commit
+		kvs.setMaxPendingWrites(10);
+		for (int i = 0; i < 100; i++) {
+			kvs.put("k" + i, "v" + i);
+			assertTrue(kvs.pendingWrites.size() < 10);
+		}
+		assertEquals("v50", kvs.get("k50"));
+		assertEquals(101, kvs.size());
+		assertTrue(kvs.writer.hasUncommittedChanges());
+
+		kvs.close();
+	}
+
+	@Test
+	public void lookupTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+		kvs.put("a", "aval2");
+		kvs.remove("b");
+
+		assertEquals("aval2", kvs.get("a"));
+		assertTrue(kvs.containsKey("a"));
+		assertFalse(kvs.containsKey("b"));
+		assertNull(kvs.get("b"));
+		assertNull(kvs.get("c"));
+
+		kvs.close();
+	}
+
+	@Test
+	public void getAllTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.put("c", "cval");
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+
+		Map<String, String> actual = kvs.getAll(Arrays.asList("b", "x", "a", "c"));
+
+		assertEquals(3, actual.size());
+		assertEquals(Arrays.asList("b", "a", "c"), new ArrayList<String>(actual.keySet()));
+		assertEquals("aval", actual.get("a"));
+		assertEquals("bval", actual.get("b"));
+		assertEquals("cval", actual.get("c"));
+
+		kvs.close();
+	}
+
+	@Test
+	public void concurrentCacheTest() throws Exception {
+		final LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+		kvs.enableCache(1024, 0);
+		final KVSValueCache<String> cache = kvs.getCache();
+		assertEquals(KVSValueCache.DEFAULT_SEGMENTS, cache.getSegments());
+		for (int i = 0; i < 512; i++) {
+			kvs.put("k" + i, "v" + i);
+		}
+		kvs.commit();
+		kvs.waitForGeneration(kvs.getGeneration());
+
+		// readers of different keys use different segments
+		final AtomicBoolean isFailed = new AtomicBoolean(false);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final int offset = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 2000; j++) {
+						int k = (j * 7 + offset) % 512;
+						if (!("v" + k).equals(kvs.get("k" + k))) {
+							isFailed.set(true);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertFalse(isFailed.get());
+		assertEquals(512, cache.size());
+		assertEquals(8 * 2000, cache.getHitCount() + cache.getMissCount());
+		assertTrue(cache.getHitCount() >= 8 * 2000 - 8 * 512);
+		assertEquals(0, cache.getEvictionCount());
+
+		// invalidated key is read again from index
+		kvs.put("k1", "new");
+		assertEquals("new", kvs.get("k1"));
+
+		kvs.close();
+	}
+
+	@Test
+	public void cacheTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.enableCache(2, 0);
+		KVSValueCache<String> cache = kvs.getCache();
+
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+		kvs.put("c", "cval");
+		// values are read from searcher after pending writes are purged
+		kvs.waitForGeneration(kvs.getGeneration());
+
+		assertEquals("aval", kvs.get("a"));
+		assertEquals("aval", kvs.get("a"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		kvs.get("b");
+		kvs.get("c");
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+
+		// invalidate on put
+		kvs.put("c", "cval2");
+		assertEquals("cval2", kvs.get("c"));
+
+		kvs.remove("c");
+		assertNull(kvs.get("c"));
+
+		kvs.clear();
+		assertEquals(0, cache.size());
+		assertNull(kvs.get("b"));
+
+		kvs.close();
+	}
+
+	@Test
+	public void bloomFilterTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.put("a", "aval");
+		kvs.setAutoCommit(false);
+		kvs.put("d", "dval");
+		// uncommitted key is read from writer without commit
+		kvs.enableBloomFilter(1000, 0.01);
+		assertTrue(kvs.writer.hasUncommittedChanges());
+		kvs.setAutoCommit(true);
+		kvs.put("b", "bval");
+
+		KVSBloomFilter filter = kvs.getBloomFilter();
+		assertTrue(filter.mightContain(new BytesRef("a")));
+		assertTrue(filter.mightContain(new BytesRef("d")));
+		assertTrue(filter.mightContain(new BytesRef("b")));
+
+		assertEquals("aval", kvs.get("a"));
+		assertEquals("bval", kvs.get("b"));
+		assertTrue(kvs.containsKey("a"));
+		assertFalse(kvs.containsKey("c"));
+		assertNull(kvs.get("c"));
+		assertEquals(1, kvs.getAll(Arrays.asList("a", "c")).size());
+
+		kvs.close();
+	}
+
+	@Test
+	public void viewTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+
+		Set<String> keys = kvs.keySet();
+		Collection<String> values = kvs.values();
+		Set<Entry<String, String>> entries = kvs.entrySet();
+
+		assertEquals(2, keys.size());
+		assertTrue(keys.contains("a"));
+		assertFalse(keys.contains("c"));
+		assertEquals(new HashSet<String>(Arrays.asList("aval", "bval")), new HashSet<String>(values));
+		assertTrue(entries.contains(new SimpleEntry<String, String>("b", "bval")));
+		assertFalse(entries.contains(new SimpleEntry<String, String>("b", "aval")));
+
+		// views reflect later writes
+		kvs.put("c", "cval");
+		assertEquals(3, keys.size());
+		assertTrue(keys.contains("c"));
+
+		keys.remove("a");
+		assertFalse(kvs.containsKey("a"));
+		assertFalse(values.contains("aval"));
+
+		// iteration merges writes which searcher doesn't reflect, so it's consistent with size
+		kvs.setAutoCommit(false);
+		kvs.put("d", "dval");
+		kvs.remove("b");
+		assertEquals(Arrays.asList("c", "d"), new ArrayList<String>(keys));
+		assertEquals(keys.size(), keys.stream().count());
+		assertEquals(Arrays.asList("cval", "dval"), new ArrayList<String>(values));
+		assertEquals(entries.size(), entries.stream().count());
+
+		// abandoned iterator holds no searcher, async reflesh must not swap searcher meanwhile
+		kvs.waitForGeneration(kvs.getGeneration());
+		IndexSearcher searcher = kvs.manager.acquire();
+		int refCount = searcher.getIndexReader().getRefCount();
+		kvs.manager.release(searcher);
+		assertEquals("c", keys.iterator().next());
+		assertTrue(values.stream().anyMatch("cval"::equals));
+		assertTrue(entries.stream().findFirst().isPresent());
+		searcher = kvs.manager.acquire();
+		assertEquals(refCount, searcher.getIndexReader().getRefCount());
+		kvs.manager.release(searcher);
+
+		kvs.close();
+	}
+
+	@Test
+	public void deleteTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.enableCache(100, 1 << 20);
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+		kvs.put("c", "cval");
+		kvs.put("d", "dval");
+		assertEquals("aval", kvs.get("a"));
+
+		kvs.delete("a");
+		kvs.delete("notfound");
+		assertNull(kvs.get("a"));
+
+		kvs.removeAll(Arrays.asList("b", "c", "notfound"));
+		assertFalse(kvs.containsKey("b"));
+		assertFalse(kvs.containsKey("c"));
+		assertEquals("dval", kvs.get("d"));
+
+		kvs.close();
+	}
+
+	@Test
+	public void atomicUpdateTest() throws Exception {
+		final LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+
+		// unflushed writes are read from pending writes
+		kvs.put("a", "aval");
+		assertEquals("aval", kvs.get("a"));
+		assertEquals("aval", kvs.putIfAbsent("a", "other"));
+		assertNull(kvs.putIfAbsent("b", "bval"));
+		assertTrue(kvs.containsKey("b"));
+		assertFalse(kvs.replace("b", "xval", "yval"));
+		assertTrue(kvs.replace("b", "bval", "yval"));
+		assertEquals("yval", kvs.getAll(Arrays.asList("a", "b")).get("b"));
+		assertTrue(kvs.remove("b", "yval"));
+		assertNull(kvs.get("b"));
+		assertEquals("aval!", kvs.computeIfPresent("a", (k, v) -> v + "!"));
+		assertNull(kvs.compute("a", (k, v) -> null));
+		assertFalse(kvs.containsKey("a"));
+		kvs.commit();
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertNull(kvs.get("a"));
+
+		kvs.put("n", "0");
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						kvs.merge("n", "1", (v, one) -> String.valueOf(Integer.parseInt(v) + 1));
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("400", kvs.get("n"));
+		kvs.commit();
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertEquals("400", kvs.get("n"));
+
+		// clear in compute function would deadlock with other lockAll
+		try {
+			kvs.compute("n", (k, v) -> {
+				kvs.clear();
+				return v;
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			// ok
+		}
+		assertEquals("400", kvs.get("n"));
+
+		kvs.clear();
+		assertNull(kvs.get("n"));
+
+		kvs.close();
+	}
+
+	@Test
+	public void numericTest() throws IOException {
+		RAMDirectory directory = new RAMDirectory();
+		LuceneStringKVS<String> legacy = new LuceneStringKVS<String>(directory, null, false);
+		legacy.put("old", "12");
+		legacy.close();
+
+		LuceneIntegerKVS<String> kvs = new LuceneIntegerKVS<String>(directory, null, false);
+		kvs.put("a", 3);
+		assertEquals(3, kvs.getInt("a", -1));
+		kvs.commit();
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertEquals(Integer.valueOf(3), kvs.get("a"));
+		assertEquals(3, kvs.getInt("a", -1));
+		assertEquals(-1, kvs.getInt("notfound", -1));
+		// string value written by older version
+		assertEquals(Integer.valueOf(12), kvs.get("old"));
+		assertEquals(12, kvs.getInt("old", -1));
+		kvs.close();
+
+		LuceneDoubleKVS<String> doubleKVS = new LuceneDoubleKVS<String>();
+		doubleKVS.put("pi", 3.14);
+		doubleKVS.waitForGeneration(doubleKVS.getGeneration());
+		assertEquals(3.14, doubleKVS.getDouble("pi", 0), 0);
+		assertEquals(Double.valueOf(3.14), doubleKVS.get("pi"));
+		doubleKVS.close();
+	}
+
+	@Test
+	public void counterTest() throws Exception {
+		final LuceneLongKVS<String> kvs = new LuceneLongKVS<String>();
+		// auto commit writes counter like put
+		kvs.increment("c", 3);
+		assertTrue(kvs.counters.isEmpty());
+		assertFalse(kvs.writer.hasUncommittedChanges());
+		assertEquals(Long.valueOf(3), kvs.get("c"));
+		kvs.remove("c");
+
+		kvs.setAutoCommit(false);
+		kvs.put("a", 10L);
+		int maxDoc = kvs.writer.maxDoc();
+		assertEquals(15, kvs.addAndGet("a", 5));
+		kvs.increment("b", 2);
+		// increments don't write index until commit
+		assertEquals(maxDoc, kvs.writer.maxDoc());
+		assertEquals(Long.valueOf(15), kvs.get("a"));
+		assertEquals(2, kvs.getLong("b", -1));
+		assertTrue(kvs.containsKey("b"));
+		// size counts key which exists only as counter
+		assertEquals(2, kvs.size());
+
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						kvs.increment("b", 1);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(402, kvs.getLong("b", -1));
+
+		kvs.commit();
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertTrue(kvs.counters.isEmpty());
+		assertEquals(Long.valueOf(402), kvs.get("b"));
+		assertEquals(2, kvs.size());
+
+		// put overwrites counter
+		kvs.increment("a", 1);
+		kvs.put("a", 0L);
+		assertEquals(Long.valueOf(0), kvs.get("a"));
+		kvs.increment("a", 1);
+		kvs.remove("a");
+		assertNull(kvs.get("a"));
+		kvs.close();
+	}
+
+	@Test
+	public void counterShutdownTest() throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		LuceneLongKVS<String> kvs = new LuceneLongKVS<String>(directory, null, false);
+		kvs.setAutoCommit(false);
+		kvs.increment("c", 3);
+		kvs.increment("c", 4);
+		assertFalse(kvs.counters.isEmpty());
+
+		// shutdown hook writes counters before index is closed
+		Runtime.getRuntime().removeShutdownHook(kvs.shutdownHook);
+		kvs.shutdownHook.run();
+
+		LuceneLongKVS<String> reopened = new LuceneLongKVS<String>(directory, null, false);
+		assertEquals(Long.valueOf(7), reopened.get("c"));
+		reopened.close();
+	}
+
+	@Test
+	public void writeBatchTest() throws Exception {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.put("user:1", "a");
+		kvs.put("user:2", "b");
+		kvs.put("item:1", "c");
+		kvs.setAutoCommit(false);
+
+		LuceneKVSWriteBatch<String, String> batch = new LuceneKVSWriteBatch<String, String>();
+		batch.deletePrefix("user:").put("user:3", "d").delete("item:1").put("item:2", "e");
+		long generation = kvs.write(batch);
+
+		// pending writes are visible before commit
+		assertNull(kvs.get("user:1"));
+		assertFalse(kvs.containsKey("user:2"));
+		assertEquals("d", kvs.get("user:3"));
+		assertEquals(2, kvs.getAll(Arrays.asList("user:1", "user:3", "item:1", "item:2")).size());
+		assertEquals(2, kvs.size());
+
+		kvs.waitForGeneration(generation);
+		assertEquals(new HashSet<String>(Arrays.asList("user:3", "item:2")), new HashSet<String>(kvs.keySet()));
+		assertNull(kvs.get("user:2"));
+		assertEquals(2, kvs.size());
+		kvs.close();
+	}
+
+	@Test
+	public void writeBatchFailureTest() throws Exception {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>() {
+			@Override
+			public Document createDocument(String key, String val) throws Exception {
+				if ("broken".equals(val)) {
+					throw new IOException("broken value");
+				}
+				return super.createDocument(key, val);
+			}
+		};
+		kvs.setAutoCommit(false);
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+		kvs.commit();
+
+		LuceneKVSWriteBatch<String, String> batch = new LuceneKVSWriteBatch<String, String>();
+		batch.put("c", "cval").delete("a").put("d", "broken").put("e", "eval");
+		try {
+			kvs.write(batch);
+			fail();
+		} catch (LuceneRuntimeException e) {
+			// batch is not written
+		}
+		assertEquals("aval", kvs.get("a"));
+		assertNull(kvs.get("c"));
+		assertEquals(2, kvs.size());
+
+		kvs.commit();
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(kvs.keySet()));
+		assertEquals(2, kvs.size());
+		kvs.close();
+	}
+
+	@Test
+	public void writeBatchRollbackTest() throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		final AtomicBoolean isBroken = new AtomicBoolean(false);
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>(directory, null, false) {
+			@Override
+			protected void erase(Term term) {
+				if (isBroken.get()) {
+					throw new IllegalStateException("broken writer");
+				}
+				super.erase(term);
+			}
+		};
+		// rolled back writer can't be refleshed
+		kvs.setAsyncReflesh(false);
+		kvs.setAutoCommit(false);
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+		kvs.commit();
+		kvs.put("x", "xval");
+
+		isBroken.set(true);
+		LuceneKVSWriteBatch<String, String> batch = new LuceneKVSWriteBatch<String, String>();
+		batch.put("c", "cval").put("b", "bval2").delete("a").put("e", "eval");
+		try {
+			kvs.write(batch);
+			fail();
+		} catch (IllegalStateException e) {
+			// writer is rolled back
+		}
+		assertEquals("bval", kvs.get("b"));
+		assertNull(kvs.get("c"));
+		assertEquals(3, kvs.size());
+		kvs.close();
+
+		// writes after last commit are discarded
+		LuceneStringKVS<String> reopened = new LuceneStringKVS<String>(directory, null, false);
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(reopened.keySet()));
+		assertEquals("bval", reopened.get("b"));
+		reopened.close();
+	}
+
+	@Test
+	public void sizeTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+		assertTrue(kvs.isEmpty());
+		kvs.put("a", "aval");
+		kvs.put("b", "bval");
+		kvs.put("a", "aval2");
+		assertEquals(2, kvs.size());
+		kvs.commit();
+		kvs.waitForGeneration(kvs.getGeneration());
+
+		// overwrite and delete of committed keys
+		kvs.put("b", "bval2");
+		kvs.delete("a");
+		kvs.delete("a");
+		kvs.delete("notfound");
+		assertEquals(1, kvs.size());
+		kvs.removeAll(Arrays.asList("b", "b", "c"));
+		assertTrue(kvs.isEmpty());
+
+		kvs.put("c", "cval");
+		kvs.clear();
+		assertEquals(0, kvs.size());
+		kvs.put("d", "dval");
+		assertEquals(1, kvs.size());
+		kvs.close();
+	}
+
+	@Test
+	public void bulkImportTest() throws IOException {
+		LuceneIntegerKVS<String> kvs = new LuceneIntegerKVS<String>();
+		kvs.enableCache(100, 0);
+		kvs.put("k0", -1);
+		kvs.increment("k1", 5);
+		assertEquals(Integer.valueOf(-1), kvs.get("k0"));
+
+		// overwrite existing keys
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		for (int i = 0; i < 5000; i++) {
+			map.put("k" + i, i);
+		}
+		assertEquals(5000, kvs.bulkImport(map.entrySet().iterator(), false, 4));
+		assertEquals(5000, kvs.size());
+		assertEquals(Integer.valueOf(0), kvs.get("k0"));
+		assertEquals(Integer.valueOf(1), kvs.get("k1"));
+		assertEquals(4999, kvs.getInt("k4999", -1));
+
+		// unique keys are added without delete
+		assertEquals(3, kvs.bulkImport(Arrays.asList(new SimpleEntry<String, Integer>("x", 1),
+				new SimpleEntry<String, Integer>("y", 2), new SimpleEntry<String, Integer>("z", 3)).stream(), true, 0));
+		assertEquals(5003, kvs.size());
+		assertEquals(Integer.valueOf(3), kvs.get("z"));
+
+		// caller executor is not shut down
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		map.clear();
+		for (int i = 0; i < 2500; i++) {
+			map.put("e" + i, i);
+		}
+		assertEquals(2500, kvs.bulkImport(map.entrySet().iterator(), false, executor, 2));
+		assertFalse(executor.isShutdown());
+		executor.shutdown();
+		assertEquals(7503, kvs.size());
+
+		// failed import keeps imported chunks and size is resynced
+		final Iterator<Entry<String, Integer>> source = map.entrySet().iterator();
+		Iterator<Entry<String, Integer>> failing = new Iterator<Entry<String, Integer>>() {
+			int count = 0;
+
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Entry<String, Integer> next() {
+				if (++count > 2000) {
+					throw new IllegalStateException("broken source");
+				}
+				Entry<String, Integer> entry = source.next();
+				return new SimpleEntry<String, Integer>("f" + entry.getKey(), entry.getValue());
+			}
+		};
+		try {
+			kvs.bulkImport(failing, true, 2);
+			fail();
+		} catch (LuceneRuntimeException e) {
+			assertEquals("broken source", e.getCause().getMessage());
+		}
+		assertEquals(kvs.writer.numDocs(), kvs.size());
+		assertTrue(kvs.size() >= 7503);
+		assertFalse(kvs.writer.hasUncommittedChanges());
+		kvs.close();
+	}
+
+	@Test
+	public void valueHashTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.put("a", "aval");
+		kvs.setValueHashIndexed(true);
+		kvs.put("b", "bval");
+
+		// "a" has no value hash, so scan index
+		assertTrue(kvs.containsValue("aval"));
+		assertTrue(kvs.containsValue("bval"));
+
+		kvs.put("a", "aval");
+		assertTrue(kvs.containsValue("aval"));
+		assertFalse(kvs.containsValue("cval"));
+
+		kvs.remove("b");
+		assertFalse(kvs.containsValue("bval"));
+
+		kvs.close();
+	}
+
+	@Test
+	public void longKeyTest() throws IOException {
+		LuceneLongKeyKVS<String> kvs = new LuceneLongKeyKVS<String>();
+		kvs.setAutoCommit(false);
+		kvs.put(10L, "ten");
+		kvs.put(-5, "minus five");
+		kvs.put(Long.MAX_VALUE, "max");
+		kvs.put(2, "two");
+		assertEquals("ten", kvs.get(10L));
+		assertEquals("ten", kvs.get(Long.valueOf(10)));
+		kvs.commit();
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertEquals("minus five", kvs.get(-5));
+		assertNull(kvs.get(3));
+
+		// term order is numeric order
+		LuceneSortedKVS<Long, String> sorted = new LuceneSortedKVS<Long, String>(kvs);
+		assertEquals(Long.valueOf(-5), sorted.firstKey());
+		assertEquals(Long.valueOf(Long.MAX_VALUE), sorted.lastKey());
+		assertEquals(Arrays.asList(2L, 10L), new ArrayList<Long>(sorted.subMap(0L, 100L).keySet()));
+
+		Iterator<Entry<Long, String>> ite = kvs.iterator();
+		while (ite.hasNext()) {
+			Entry<Long, String> entry = ite.next();
+			assertEquals(kvs.get(entry.getKey().longValue()), entry.getValue());
+		}
+
+		kvs.close();
+	}
+
 }
@@ -2,14 +2,22 @@ package jp.ksgwr.lucene.kvs;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map.Entry;
 
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.junit.Test;
 
 public class LuceneObjectKVSTest {
@@ -32,6 +40,32 @@ public class LuceneObjectKVSTest {
 		kvs.close();
 	}
 
+	@Test
+	public void pendingValueTest() throws IOException {
+		LuceneObjectKVS<Integer, Sample> kvs = new LuceneObjectKVS<>();
+		kvs.setAutoCommit(false);
+
+		Sample sample = new Sample();
+		sample.name = "hoge";
+		sample.age = 10;
+		kvs.put(1, sample);
+		// put value is copied, later change of caller's object is not visible
+		sample.age = 20;
+
+		Sample actual = kvs.get(1);
+		assertNotSame(sample, actual);
+		assertEquals(10, actual.age);
+		actual.age = 30;
+		assertEquals(10, kvs.get(1).age);
+		assertEquals(10, kvs.getAll(Arrays.asList(1)).get(1).age);
+
+		kvs.commit();
+		kvs.waitForGeneration(0);
+		assertEquals(10, kvs.get(1).age);
+
+		kvs.close();
+	}
+
 	@Test
 	public void advancedTest() throws IOException {
 		File indexFile = new File("data", "test3");
@@ -59,6 +93,146 @@ public class LuceneObjectKVSTest {
 		kvs.close();
 	}
 
+	@Test
+	public void offHeapCacheTest() throws IOException {
+		LuceneObjectKVS<Integer, Sample> kvs = new LuceneObjectKVS<>();
+		kvs.enableOffHeapCache(2048, 1024);
+		KVSOffHeapCache cache = kvs.getOffHeapCache();
+
+		Sample sample = new Sample();
+		sample.name = "hoge";
+		sample.age = 10;
+		kvs.put(1, sample);
+		kvs.waitForGeneration(kvs.getGeneration());
+
+		assertEquals("hoge", kvs.get(1).name);
+		assertEquals("hoge", kvs.get(1).name);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.size());
+
+		sample.name = "fuga";
+		kvs.put(1, sample);
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertEquals(0, cache.size());
+		assertEquals("fuga", kvs.get(1).name);
+
+		// evict oldest slab
+		for (int i = 2; i < 40; i++) {
+			kvs.put(i, sample);
+			kvs.waitForGeneration(kvs.getGeneration());
+			kvs.get(i);
+		}
+		assertTrue(cache.getEvictionCount() > 0);
+		assertTrue(cache.getAllocatedBytes() <= 2048);
+		assertEquals(10, kvs.get(39).age);
+
+		kvs.close();
+	}
+
+	@Test
+	public void getBytesTest() throws Exception {
+		LuceneObjectKVS<String, String> kvs = new LuceneObjectKVS<String, String>();
+		kvs.enableOffHeapCache(4096, 1024);
+		kvs.setAsyncReflesh(false);
+		kvs.put("a", "aval");
+		byte[] expected = kvs.getValueCodec().encode("aval");
+
+		// pending write keeps encoded bytes, and returned bytes are copied
+		assertEquals(new BytesRef(expected), kvs.pendingWrites.get(new BytesRef("a")).bytes);
+		BytesRef bytes = kvs.getBytes("a");
+		assertEquals(new BytesRef(expected), bytes);
+		bytes.bytes[bytes.offset] ^= 1;
+		assertEquals(new BytesRef(expected), kvs.getBytes("a"));
+		kvs.waitForGeneration(kvs.getGeneration());
+
+		bytes = kvs.getBytes("a");
+		assertEquals(new BytesRef(expected), bytes);
+		assertEquals("aval", kvs.getValueCodec().decode(bytes.bytes, bytes.offset, bytes.length));
+		assertNull(kvs.getBytes("b"));
+
+		// second read is copied from off heap cache
+		ByteBuffer dst = ByteBuffer.allocateDirect(64);
+		dst.position(3);
+		assertEquals(expected.length, kvs.getBytes("a", dst));
+		assertEquals(3 + expected.length, dst.position());
+		assertEquals(1, kvs.getOffHeapCache().getHitCount());
+		assertEquals(-1, kvs.getBytes("b", dst));
+		try {
+			kvs.getBytes("a", ByteBuffer.allocate(1));
+			fail();
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+
+		kvs.close();
+	}
+
+	@Test
+	public void streamTest() throws Exception {
+		LuceneObjectKVS<String, byte[]> kvs = new LuceneObjectKVS<String, byte[]>();
+		kvs.enableLargeValues(new RAMDirectory(), 100);
+		byte[] value = new byte[1000];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = (byte) i;
+		}
+		byte[] encoded = kvs.getValueCodec().encode(value);
+		assertEquals(encoded.length, kvs.putStream("a", new ByteArrayInputStream(encoded)));
+
+		// value is decoded from all chunks
+		assertArrayEquals(value, kvs.get("a"));
+		assertTrue(kvs.containsKey("a"));
+		assertArrayEquals(value, kvs.getAll(Arrays.asList("a")).get("a"));
+		assertEquals(new BytesRef(encoded), kvs.getBytes("a"));
+
+		InputStream in = kvs.getStream("a");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[30];
+		int size;
+		while ((size = in.read(buf)) > 0) {
+			assertTrue(size <= 100);
+			out.write(buf, 0, size);
+		}
+		in.close();
+		assertArrayEquals(encoded, out.toByteArray());
+
+		// old chunks are deleted by overwrite
+		kvs.putStream("a", new ByteArrayInputStream(encoded));
+		kvs.commit();
+		assertEquals(11, kvs.getBlobStore().writer.numDocs());
+
+		// small value is stored in main index
+		kvs.put("a", new byte[] { 1 });
+		kvs.waitForGeneration(kvs.getGeneration());
+		assertArrayEquals(new byte[] { 1 }, kvs.get("a"));
+		assertEquals(0, kvs.getBlobStore().writer.numDocs());
+
+		kvs.putStream("b", new ByteArrayInputStream(encoded));
+		assertEquals(2, kvs.size());
+		kvs.remove("b");
+		assertNull(kvs.get("b"));
+		assertNull(kvs.getStream("b"));
+		assertEquals(0, kvs.getBlobStore().writer.numDocs());
+
+		// chunk index is saved together
+		kvs.putStream("c", new ByteArrayInputStream(encoded));
+		try {
+			kvs.save(new RAMDirectory());
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		RAMDirectory saved = new RAMDirectory();
+		RAMDirectory savedBlob = new RAMDirectory();
+		kvs.save(saved, savedBlob);
+		LuceneObjectKVS<String, byte[]> copy = new LuceneObjectKVS<String, byte[]>(saved, null, false);
+		copy.enableLargeValues(savedBlob, 100);
+		assertArrayEquals(value, copy.get("c"));
+		assertArrayEquals(new byte[] { 1 }, copy.get("a"));
+		copy.close();
+
+		kvs.close();
+		assertNull(kvs.getBlobStore());
+	}
+
 	/**
 	 * sample pojo class
 	 *
@@ -0,0 +1,320 @@
+package jp.ksgwr.lucene.kvs;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.junit.Test;
+
+public class LuceneSortedKVSTest {
+
+	private LuceneStringKVS<String> createKVS() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+		for (String key : new String[] { "apple", "apricot", "banana", "blueberry", "cherry" }) {
+			kvs.put(key, key + "val");
+		}
+		kvs.commit();
+		return kvs;
+	}
+
+	@Test
+	public void rangeTest() throws IOException {
+		LuceneStringKVS<String> kvs = createKVS();
+		LuceneSortedKVS<String, String> sorted = new LuceneSortedKVS<String, String>(kvs);
+
+		assertEquals("apple", sorted.firstKey());
+		assertEquals("cherry", sorted.lastKey());
+		assertEquals(5, sorted.size());
+		assertEquals(Arrays.asList("apple", "apricot", "banana", "blueberry", "cherry"), new ArrayList<String>(sorted.keySet()));
+
+		assertEquals(Arrays.asList("apricot", "banana"), new ArrayList<String>(sorted.subMap("apricot", "blueberry").keySet()));
+		assertEquals(Arrays.asList("apple", "apricot"), new ArrayList<String>(sorted.headMap("b").keySet()));
+		assertEquals(Arrays.asList("blueberry", "cherry"), new ArrayList<String>(sorted.tailMap("banana", false).keySet()));
+
+		NavigableMap<String, String> sub = sorted.subMap("apricot", true, "cherry", false);
+		assertEquals("apricot", sub.firstKey());
+		assertEquals("blueberry", sub.lastKey());
+		assertEquals("bananaval", sub.get("banana"));
+		assertNull(sub.get("cherry"));
+		assertEquals(Arrays.asList("banana"), new ArrayList<String>(sub.tailMap("b").headMap("blueberry").keySet()));
+
+		assertEquals("banana", sorted.ceilingKey("b"));
+		assertEquals("banana", sorted.ceilingKey("banana"));
+		assertEquals("blueberry", sorted.higherKey("banana"));
+		assertEquals("apricot", sorted.floorKey("b"));
+		assertEquals("apricot", sorted.lowerKey("banana"));
+		assertNull(sorted.lowerKey("apple"));
+		assertNull(sorted.ceilingKey("d"));
+		assertEquals("cherryval", sorted.lastEntry().getValue());
+
+		assertEquals(Arrays.asList("cherry", "blueberry", "banana", "apricot", "apple"), new ArrayList<String>(sorted.descendingKeySet()));
+
+		try {
+			sorted.subMap("cherry", "apple");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			sorted.navigableKeySet().subSet("cherry", true, "apple", true);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		kvs.close();
+	}
+
+	@Test
+	public void descendingTest() throws IOException {
+		LuceneStringKVS<String> kvs = createKVS();
+		NavigableMap<String, String> desc = new LuceneSortedKVS<String, String>(kvs).descendingMap();
+
+		assertEquals("cherry", desc.firstKey());
+		assertEquals("apple", desc.lastKey());
+		assertEquals("apricot", desc.higherKey("banana"));
+		assertEquals("blueberry", desc.lowerKey("banana"));
+		assertEquals("banana", desc.ceilingKey("bb"));
+		assertEquals("blueberry", desc.floorKey("bb"));
+		assertTrue(desc.comparator().compare("apple", "banana") > 0);
+		assertEquals(Arrays.asList("blueberry", "banana"), new ArrayList<String>(desc.subMap("blueberry", true, "apricot", false).keySet()));
+		assertEquals(Arrays.asList("cherry", "blueberry"), new ArrayList<String>(desc.headMap("banana").keySet()));
+		assertEquals(Arrays.asList("apricot", "apple"), new ArrayList<String>(desc.tailMap("apricot").keySet()));
+		assertEquals(Arrays.asList("apple", "apricot", "banana", "blueberry", "cherry"), new ArrayList<String>(desc.descendingMap().keySet()));
+		try {
+			desc.subMap("apple", "cherry");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		// view is backed by index
+		kvs.put("date", "dateval");
+		kvs.remove("apple");
+		kvs.commit();
+		assertEquals("date", desc.firstKey());
+		assertEquals("apricot", desc.lastKey());
+		assertEquals("dateval", desc.firstEntry().getValue());
+
+		kvs.close();
+	}
+
+	@Test
+	public void pendingWriteTest() throws IOException {
+		LuceneStringKVS<String> kvs = createKVS();
+		LuceneSortedKVS<String, String> sorted = new LuceneSortedKVS<String, String>(kvs);
+
+		// writes are not reflected to searcher yet
+		kvs.put("avocado", "avocadoval");
+		kvs.put("banana", "banana2");
+		kvs.remove("blueberry");
+		kvs.put("date", "dateval");
+		assertTrue(kvs.pendingWrites.size() > 0);
+
+		assertEquals(Arrays.asList("apple", "apricot", "avocado", "banana", "cherry", "date"), new ArrayList<String>(sorted.keySet()));
+		assertEquals(6, sorted.keySet().size());
+		assertEquals("date", sorted.lastKey());
+		assertEquals("cherry", sorted.lowerKey("date"));
+		assertEquals("banana", sorted.lowerKey("blueberry"));
+		assertEquals("banana2", sorted.floorEntry("blueberry").getValue());
+		assertEquals("avocado", sorted.higherKey("apricot"));
+		assertEquals(Arrays.asList("banana", "avocado"), new ArrayList<String>(sorted.subMap("avocado", true, "blueberry", true).descendingKeySet()));
+		ArrayList<String> values = new ArrayList<String>();
+		for (Entry<String, String> entry : sorted.tailMap("b").entrySet()) {
+			values.add(entry.getValue());
+		}
+		assertEquals(Arrays.asList("banana2", "cherryval", "dateval"), values);
+		assertEquals(2, sorted.prefixScan("a").headMap("avocado").size());
+
+		kvs.close();
+
+		// counters are merged before flush
+		LuceneLongKVS<String> counter = new LuceneLongKVS<String>();
+		counter.setAutoCommit(false);
+		counter.put("a", 1L);
+		counter.commit();
+		counter.increment("a", 2);
+		counter.increment("b", 5);
+		LuceneSortedKVS<String, Long> sortedCounter = new LuceneSortedKVS<String, Long>(counter);
+		assertEquals("b", sortedCounter.lastKey());
+		assertEquals(Long.valueOf(3), sortedCounter.firstEntry().getValue());
+		assertEquals(Long.valueOf(5), sortedCounter.tailMap("b").get("b"));
+		assertEquals(2, sortedCounter.headMap("c").size());
+		counter.close();
+	}
+
+	@Test
+	public void randomTest() throws IOException {
+		Random random = new Random(7);
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		String chars = "\u0001a\u007f";
+		for (int i = 0; i < 600; i++) {
+			StringBuilder key = new StringBuilder();
+			int length = random.nextInt(4);
+			for (int j = 0; j < length; j++) {
+				key.append(chars.charAt(random.nextInt(chars.length())));
+			}
+			if (random.nextInt(4) == 0) {
+				kvs.remove(key.toString());
+				expected.remove(key.toString());
+			} else {
+				kvs.put(key.toString(), "v" + i);
+				expected.put(key.toString(), "v" + i);
+			}
+			if (i % 150 == 100) {
+				kvs.commit();
+			}
+		}
+		LuceneSortedKVS<String, String> sorted = new LuceneSortedKVS<String, String>(kvs);
+		assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(sorted.keySet()));
+		assertEquals(new ArrayList<String>(expected.descendingKeySet()), new ArrayList<String>(sorted.descendingKeySet()));
+		assertEquals(expected.lastKey(), sorted.lastKey());
+		for (int i = 0; i < 300; i++) {
+			StringBuilder key = new StringBuilder();
+			int length = random.nextInt(5);
+			for (int j = 0; j < length; j++) {
+				key.append(chars.charAt(random.nextInt(chars.length())));
+			}
+			String k = key.toString();
+			assertEquals(k, expected.lowerKey(k), sorted.lowerKey(k));
+			assertEquals(k, expected.floorKey(k), sorted.floorKey(k));
+			assertEquals(k, expected.ceilingKey(k), sorted.ceilingKey(k));
+			assertEquals(k, expected.higherKey(k), sorted.higherKey(k));
+			assertEquals(k, expected.headMap(k).size(), sorted.headMap(k).size());
+			if (!expected.headMap(k).isEmpty()) {
+				assertEquals(k, expected.headMap(k, false).lastEntry().getValue(), sorted.headMap(k, false).lastEntry().getValue());
+			}
+		}
+
+		kvs.close();
+	}
+
+	@Test
+	public void iteratorReleaseTest() throws IOException {
+		LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+		for (int i = 0; i < LuceneSortedKVS.ITERATOR_BATCH_SIZE * 3; i++) {
+			kvs.put(String.format("%04d", i), "v" + i);
+		}
+		kvs.commit();
+		// async reflesh must not swap searcher while reference count is compared
+		kvs.waitForGeneration(kvs.getGeneration());
+		LuceneSortedKVS<String, String> sorted = new LuceneSortedKVS<String, String>(kvs);
+
+		IndexSearcher searcher = kvs.manager.acquire();
+		int refCount = searcher.getIndexReader().getRefCount();
+		kvs.manager.release(searcher);
+
+		// abandoned iterators hold no searcher
+		Iterator<String> ite = sorted.keySet().iterator();
+		assertEquals("0000", ite.next());
+		assertEquals("0299", sorted.descendingKeySet().iterator().next());
+		searcher = kvs.manager.acquire();
+		assertEquals(refCount, searcher.getIndexReader().getRefCount());
+		kvs.manager.release(searcher);
+
+		// iteration continues over batches
+		int count = 1;
+		while (ite.hasNext()) {
+			assertEquals(String.format("%04d", count++), ite.next());
+		}
+		assertEquals(LuceneSortedKVS.ITERATOR_BATCH_SIZE * 3, count);
+
+		kvs.close();
+	}
+
+	@Test
+	public void purgeWhileReadingTest() throws Exception {
+		final LuceneStringKVS<String> kvs = new LuceneStringKVS<String>();
+		kvs.setAutoCommit(false);
+		kvs.setMaxPendingWrites(20);
+		for (int i = 0; i < 200; i++) {
+			kvs.put(String.format("a%03d", i), "v" + i);
+		}
+		LuceneSortedKVS<String, String> sorted = new LuceneSortedKVS<String, String>(kvs).prefixScan("a");
+
+		// rewrites are purged by reflesh while views read pending writes and searcher
+		final AtomicBoolean isRunning = new AtomicBoolean(true);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; isRunning.get(); i++) {
+					kvs.put(String.format("a%03d", i % 200), "v" + (i % 200));
+				}
+			}
+		};
+		writer.start();
+		try {
+			for (int i = 0; i < 200; i++) {
+				assertEquals(200, sorted.size());
+				assertEquals("a000", sorted.firstKey());
+				assertEquals("a199", sorted.lastKey());
+			}
+			int count = 0;
+			for (Iterator<String> ite = sorted.keySet().iterator(); ite.hasNext(); ite.next()) {
+				count++;
+			}
+			assertEquals(200, count);
+		} finally {
+			isRunning.set(false);
+			writer.join();
+		}
+
+		kvs.close();
+	}
+
+	@Test
+	public void prefixScanTest() throws IOException {
+		LuceneStringKVS<String> kvs = createKVS();
+		LuceneSortedKVS<String, String> sorted = new LuceneSortedKVS<String, String>(kvs);
+
+		LuceneSortedKVS<String, String> ap = sorted.prefixScan("ap");
+		assertEquals(2, ap.size());
+		ArrayList<String> values = new ArrayList<String>();
+		for (Entry<String, String> entry : ap.entrySet()) {
+			values.add(entry.getValue());
+		}
+		assertEquals(Arrays.asList("appleval", "apricotval"), values);
+		assertEquals("apricot", ap.lastKey());
+		assertFalse(ap.containsKey("banana"));
+		assertTrue(sorted.prefixScan("d").isEmpty());
+		assertTrue(ap.prefixScan("b").isEmpty());
+
+		try {
+			ap.put("banana", "x");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			sorted.prefixScan("d").firstKey();
+			fail();
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+
+		// deleted key is not in range
+		kvs.remove("cherry");
+		kvs.commit();
+		assertEquals("blueberry", sorted.lastKey());
+
+		sorted.prefixScan("b").clear();
+		kvs.commit();
+		assertEquals(Arrays.asList("apple", "apricot"), new ArrayList<String>(sorted.keySet()));
+
+		kvs.close();
+	}
+}